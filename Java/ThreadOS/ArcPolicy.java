@@ -0,0 +1,81 @@
+import java.util.*;
+
+// Adaptive replacement (ARC, Megiddo and Modha) in its clock form, CAR
+// (Bansal and Modha), since hits only set reference bits. T1 holds blocks
+// seen once recently and T2 blocks seen at least twice; B1 and B2 remember
+// the blocks recently evicted from each. A miss on a ghost in B1 means T1
+// was too small and moves the target size p of T1 up, one in B2 moves it
+// down. Scans only churn T1, so T2 keeps the frequently used blocks.
+public class ArcPolicy implements CachePolicy {
+    private int frames;            // c
+    private int target = 0;        // p: the size T1 should have
+    private ArrayDeque<Cache.Entry> t1 = new ArrayDeque<Cache.Entry>();
+    private ArrayDeque<Cache.Entry> t2 = new ArrayDeque<Cache.Entry>();
+    private LinkedHashSet<Integer> b1 = new LinkedHashSet<Integer>();
+    private LinkedHashSet<Integer> b2 = new LinkedHashSet<Integer>();
+
+    public ArcPolicy(int frames) {
+        this.frames = frames;
+    }
+
+    public void insert(Cache.Entry entry) {
+        entry.reference = false;
+        if (b1.remove(entry.frame)) {
+            target = Math.min(target + Math.max(1, b2.size() / Math.max(1, b1.size())),
+                    frames);
+            t2.addLast(entry);
+        } else if (b2.remove(entry.frame)) {
+            target = Math.max(target - Math.max(1, b1.size() / Math.max(1, b2.size())),
+                    0);
+            t2.addLast(entry);
+        } else {
+            // a new block: keep the ghost lists within c and 2c in all
+            if (t1.size() + b1.size() >= frames && !b1.isEmpty()) {
+                removeOldest(b1);
+            } else if (t1.size() + t2.size() + b1.size() + b2.size() >= 2 * frames
+                    && !b2.isEmpty()) {
+                removeOldest(b2);
+            }
+            t1.addLast(entry);
+        }
+    }
+
+    public Cache.Entry evict() {
+        while (true) {
+            if (!t1.isEmpty() && (t1.size() >= Math.max(1, target) || t2.isEmpty())) {
+                Cache.Entry e = t1.removeFirst();
+                if (!e.reference) {
+                    b1.add(e.frame);
+                    return e;
+                }
+                // used again while in T1: it has been seen twice
+                e.reference = false;
+                t2.addLast(e);
+            } else {
+                Cache.Entry e = t2.removeFirst();
+                if (!e.reference) {
+                    b2.add(e.frame);
+                    return e;
+                }
+                e.reference = false;
+                t2.addLast(e);
+            }
+        }
+    }
+
+    public void clear() {
+        t1.clear();
+        t2.clear();
+        b1.clear();
+        b2.clear();
+        target = 0;
+    }
+
+    private static void removeOldest(LinkedHashSet<Integer> ghosts) {
+        ghosts.remove(ghosts.iterator().next());
+    }
+
+    public String toString() {
+        return "arc";
+    }
+}
@@ -0,0 +1,797 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CSS 430 Final Project
+ *
+ * Cache.java
+ *
+ * A write-back disk block cache. Every file system component reads and
+ * writes blocks through it, and dirty blocks reach the disk when they are
+ * evicted or on sync/flush.
+ *
+ * The frames are split into stripes, each with its own lock and its own
+ * replacement policy (see CachePolicy), and a block can only be cached in
+ * stripe (block % stripes), so threads working on different stripes never
+ * wait for each other. Read
+ * hits take no stripe lock: they find the entry in a concurrent index and
+ * copy its frame holding only the entry's own monitor.
+ *
+ * The frames themselves live off the Java heap, in one direct buffer, so
+ * a cache of hundreds of megabytes costs the garbage collector nothing.
+ * The cache can be resized while in use: see resize.
+ *
+ * It counts its hits, misses, evictions and write-backs (see getStats),
+ * and can record every block it is asked for in a trace file that
+ * CacheSim replays against other sizes and policies.
+ *
+ * A flusher thread writes dirty blocks back in the background, so that
+ * evictions seldom have to: see startFlusher.
+ */
+public class Cache {
+    private static final int MIN_STRIPE_FRAMES = 8;
+    private static final int MAX_STRIPES = 16;
+    private static final int HIGH_WATERMARK = 50; // % of frames dirty
+    private static final int LOW_WATERMARK = 25;  // % of frames dirty
+    private static final int FLUSH_INTERVAL = 100; // ms between checks
+
+    // Positions in the array filled by getStats
+    public static final int READ_HITS = 0;
+    public static final int READ_MISSES = 1;
+    public static final int WRITE_HITS = 2;
+    public static final int WRITE_MISSES = 3;  // writes of uncached blocks
+    public static final int EVICTIONS = 4;
+    public static final int WRITE_BACKS = 5;   // dirty blocks written back
+    public static final int FRAMES = 6;
+    public static final int DIRTY = 7;
+    public static final int STATS = 8;         // size of the array
+
+    private int blockSize;
+    private int diskBlocks;                           // blocks on the disk
+    private String policyName;
+    private volatile ConcurrentHashMap<Integer, Entry> index; // every cached block
+    private Stripe[] stripes;
+    private ByteBuffer store;                         // all the frames
+    private volatile int frames;                      // in all stripes
+    // held shared by everything but read hits, and exclusively by resize
+    private final ReentrantReadWriteLock resizeLock = new ReentrantReadWriteLock();
+    private AtomicInteger dirtyCount = new AtomicInteger(0);
+    private long maxDirtyAge;                         // ms, for the flusher
+    private Thread flusher = null;
+    private final Object flusherSignal = new Object();
+    private final LongAdder[] counters = new LongAdder[DIRTY];
+    private volatile PrintWriter trace = null;        // see startTrace
+    private boolean traceHook = false;                // its shutdown hook is registered
+
+    static class Entry {
+        public final int frame;             // the disk block cached
+        public final int slot;              // its frame in store
+        private final ByteBuffer data;      // a view of the frame, used
+                                            // under the entry's monitor
+        public volatile boolean reference;
+        public volatile boolean dirty;      // set under the stripe lock
+        public long dirtySince;             // when it last became dirty
+        public boolean evicted = false;     // under the entry's monitor
+
+        //An entry with no frame, for CacheSim
+        Entry(int frame) {
+            this.frame = frame;
+            slot = -1;
+            data = null;
+            reference = true;
+        }
+
+        public Entry(int frame, int slot, ByteBuffer store, int blockSize) {
+            this.frame = frame;
+            this.slot = slot;
+            ByteBuffer view = store.duplicate();
+            view.position(slot * blockSize);
+            view.limit(view.position() + blockSize);
+            data = view.slice();
+            dirty = false;
+            reference = true;
+        }
+    }
+
+    private static class Stripe {
+        public final ReentrantLock lock = new ReentrantLock();
+        public final CachePolicy policy;    // chooses the victims
+        public final int frames;
+        private final int[] free;           // slots of the unused frames
+        private int freeCount;
+
+        public Stripe(int firstSlot, int frames, CachePolicy policy) {
+            this.frames = frames;
+            this.policy = policy;
+            free = new int[frames];
+            for (int i = 0; i < frames; i++) {
+                free[freeCount++] = firstSlot + frames - 1 - i;
+            }
+        }
+
+        public boolean full() {
+            return freeCount == 0;
+        }
+
+        public int available() {
+            return freeCount;
+        }
+
+        public int allocate() {
+            return free[--freeCount];
+        }
+
+        public void release(int slot) {
+            free[freeCount++] = slot;
+        }
+    }
+
+    //Dirty blocks on their way to the disk, copied out of their frames
+    private class Batch {
+        private int[] blockIds = new int[8];
+        private byte[][] data = new byte[8][];
+        private int n = 0;
+
+        public void add(int blockId, byte[] image) {
+            if (n == blockIds.length) {
+                blockIds = Arrays.copyOf(blockIds, n * 2);
+                data = Arrays.copyOf(data, n * 2);
+            }
+            blockIds[n] = blockId;
+            data[n++] = image;
+        }
+
+        //Writes the batch to the disk with one vectored write
+        public boolean write() {
+            if (n == 0) {
+                return true;
+            }
+            counters[WRITE_BACKS].add(n);
+            return SysLib.rawwritev(Arrays.copyOf(blockIds, n),
+                    Arrays.copyOf(data, n)) != Kernel.ERROR;
+        }
+    }
+
+    public Cache(int blockSize, int cacheBlocks) {
+        this(blockSize, cacheBlocks, "clock");
+    }
+
+    //policy names the replacement policy of every stripe: "clock"
+    //(second chance), "2q" or "arc"
+    public Cache(int blockSize, int cacheBlocks, String policy) {
+        this(blockSize, cacheBlocks, policy, Integer.MAX_VALUE);
+    }
+
+    //diskBlocks is the size of the disk behind the cache; blocks past it
+    //are refused as the disk refuses them
+    public Cache(int blockSize, int cacheBlocks, String policy, int diskBlocks) {
+        this.blockSize = blockSize;
+        this.diskBlocks = diskBlocks;
+        policyName = policy;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        index = new ConcurrentHashMap<Integer, Entry>();
+        allocateFrames(cacheBlocks);
+    }
+
+    //The largest number of frames one direct buffer can hold
+    public static int maxBlocks(int blockSize) {
+        return Integer.MAX_VALUE / blockSize;
+    }
+
+    //The number of stripes a cache of cacheBlocks frames is split into
+    static int stripeCount(int cacheBlocks) {
+        return Math.max(1, Math.min(MAX_STRIPES, cacheBlocks / MIN_STRIPE_FRAMES));
+    }
+
+    //The frames of one of those stripes; the first (cacheBlocks % stripes)
+    //stripes get one frame more
+    static int stripeFrames(int cacheBlocks, int stripe) {
+        int n = stripeCount(cacheBlocks);
+        return cacheBlocks / n + ((stripe < cacheBlocks % n) ? 1 : 0);
+    }
+
+    //Sets up stripes and an empty direct buffer for cacheBlocks frames
+    private void allocateFrames(int cacheBlocks) {
+        frames = cacheBlocks;
+        store = ByteBuffer.allocateDirect(cacheBlocks * blockSize);
+        stripes = new Stripe[stripeCount(cacheBlocks)];
+        int first = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            int frames = stripeFrames(cacheBlocks, i);
+            stripes[i] = new Stripe(first, frames, newPolicy(policyName, frames));
+            first += frames;
+        }
+    }
+
+    //The number of frames, which resize changes; cheap enough to ask on
+    //every read
+    public int size() {
+        return frames;
+    }
+
+    //Fills stats with the counters, indexed by READ_HITS to DIRTY; false
+    //if it is shorter than STATS
+    public boolean getStats(long[] stats) {
+        if (stats == null || stats.length < STATS) {
+            return false;
+        }
+        for (int i = 0; i < counters.length; i++) {
+            stats[i] = counters[i].sum();
+        }
+        stats[FRAMES] = frames;
+        stats[DIRTY] = dirtyCount.get();
+        return true;
+    }
+
+    //Starts recording every block read or written through the cache in
+    //fileName for CacheSim: one "r" or "w" line per call, followed by the
+    //blocks it reads or writes. A trace already being recorded is closed.
+    public synchronized boolean startTrace(String fileName) {
+        PrintWriter out;
+        try {
+            out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+        } catch (IOException e) {
+            System.err.println("threadOS: cannot write cache trace " + fileName);
+            return false;
+        }
+        closeTrace();
+        trace = out;
+        if (!traceHook) {
+            // one hook closes whichever trace is open when ThreadOS exits
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                public void run() {
+                    closeTrace();
+                }
+            });
+            traceHook = true;
+        }
+        return true;
+    }
+
+    private synchronized void closeTrace() {
+        PrintWriter out = trace;
+        if (out != null) {
+            trace = null;
+            synchronized (out) {
+                out.close();
+            }
+        }
+    }
+
+    private void record(char op, int[] blockIds) {
+        PrintWriter out = trace;
+        if (out == null) {
+            return;                 // closed since the caller looked
+        }
+        synchronized (out) {
+            out.print(op);
+            for (int i = 0; i < blockIds.length; i++) {
+                out.print(' ');
+                out.print(blockIds[i]);
+            }
+            out.println();
+        }
+    }
+
+    //Changes the number of frames. Dirty blocks are written back first,
+    //then as many cached blocks as fit are carried over to the new frames.
+    //If the write-back fails the cache is left as it was.
+    public boolean resize(int cacheBlocks) {
+        if (cacheBlocks < 1 || cacheBlocks > maxBlocks(blockSize)) {
+            return false;
+        }
+        resizeLock.writeLock().lock();
+        try {
+            Batch dirty = new Batch();
+            List<Entry> written = new ArrayList<Entry>();
+            for (Entry e : index.values()) {
+                if (e.dirty) {
+                    dirty.add(e.frame, readFrame(e));
+                    written.add(e);
+                }
+            }
+            // on failure the blocks stay cached and dirty, in the old frames
+            if (!dirty.write()) {
+                return false;
+            }
+            for (Entry e : written) {
+                markClean(e);
+            }
+            ConcurrentHashMap<Integer, Entry> old = index;
+            ConcurrentHashMap<Integer, Entry> fresh = new ConcurrentHashMap<Integer, Entry>();
+            allocateFrames(cacheBlocks);
+            byte[] image = new byte[blockSize];
+            for (Entry e : old.values()) {
+                synchronized (e) {
+                    e.evicted = true;
+                    copyFrame(e, image);
+                }
+                Stripe stripe = stripeOf(e.frame);
+                if (!stripe.full()) {
+                    Entry moved = new Entry(e.frame, stripe.allocate(), store, blockSize);
+                    synchronized (moved) {
+                        writeFrame(moved, image);
+                    }
+                    stripe.policy.insert(moved);
+                    fresh.put(e.frame, moved);
+                }
+            }
+            index = fresh;
+            return true;
+        } finally {
+            resizeLock.writeLock().unlock();
+        }
+    }
+
+    static CachePolicy newPolicy(String name, int frames) {
+        if (name.equals("2q")) {
+            return new TwoQueuePolicy(frames);
+        }
+        if (name.equals("arc")) {
+            return new ArcPolicy(frames);
+        }
+        if (!name.equals("clock")) {
+            System.err.println("threadOS: unknown cache policy " + name
+                    + ", using clock");
+        }
+        return new ClockPolicy(frames);
+    }
+
+    public boolean read(int blockId, byte[] buffer) {
+        return readv(new int[] { blockId }, new byte[][] { buffer });
+    }
+
+    public boolean write(int blockId, byte[] buffer) {
+        return writev(new int[] { blockId }, new byte[][] { buffer });
+    }
+
+    //Reads several blocks. Hits are copied without locking; the misses
+    //are fetched from the disk with a single vectored read while their
+    //stripes are locked.
+    public boolean readv(int[] blockIds, byte[][] buffers) {
+        if (!validBlocks(blockIds, buffers, "cread")) {
+            return false;
+        }
+        if (trace != null) {
+            record('r', blockIds);
+        }
+        int[] missing = new int[blockIds.length];
+        int nMissing = 0;
+        for (int i = 0; i < blockIds.length; i++) {
+            if (!copyCached(blockIds[i], buffers[i])) {
+                missing[nMissing++] = i;
+            }
+        }
+        if (nMissing == 0) {
+            counters[READ_HITS].add(blockIds.length);
+            return true;
+        }
+
+        resizeLock.readLock().lock();
+        boolean[] locked = lockStripes(blockIds, missing, nMissing);
+        try {
+            // other threads may have cached some of them in the meantime
+            int[] diskIds = new int[nMissing];
+            byte[][] diskData = new byte[nMissing][];
+            int nDisk = 0;
+            for (int i = 0; i < nMissing; i++) {
+                int m = missing[i];
+                if (!copyCached(blockIds[m], buffers[m])) {
+                    diskIds[nDisk] = blockIds[m];
+                    diskData[nDisk++] = buffers[m];
+                }
+            }
+            counters[READ_HITS].add(blockIds.length - nDisk);
+            counters[READ_MISSES].add(nDisk);
+            if (nDisk == 0) {
+                return true;
+            }
+            if (nDisk < nMissing) {
+                int[] ids = new int[nDisk];
+                byte[][] data = new byte[nDisk][];
+                System.arraycopy(diskIds, 0, ids, 0, nDisk);
+                System.arraycopy(diskData, 0, data, 0, nDisk);
+                diskIds = ids;
+                diskData = data;
+            }
+            if (SysLib.rawreadv(diskIds, diskData) == Kernel.ERROR) {
+                return false;
+            }
+            if (!makeRoom(diskIds)) {
+                return false;
+            }
+            for (int i = 0; i < nDisk; i++) {
+                if (!install(diskIds[i], diskData[i], false)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            unlockStripes(locked);
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    //Writes several blocks into the cache. They reach the disk later.
+    public boolean writev(int[] blockIds, byte[][] buffers) {
+        if (!validBlocks(blockIds, buffers, "cwrite")) {
+            return false;
+        }
+        if (trace != null) {
+            record('w', blockIds);
+        }
+        int[] all = new int[blockIds.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        resizeLock.readLock().lock();
+        boolean[] locked = lockStripes(blockIds, all, all.length);
+        try {
+            if (!makeRoom(blockIds)) {
+                return false;
+            }
+            for (int i = 0; i < blockIds.length; i++) {
+                boolean hit = index.containsKey(blockIds[i]);
+                if (!install(blockIds[i], buffers[i], true)) {
+                    return false;
+                }
+                counters[hit ? WRITE_HITS : WRITE_MISSES].increment();
+            }
+            return true;
+        } finally {
+            unlockStripes(locked);
+            resizeLock.readLock().unlock();
+            if (flusher != null && dirtyCount.get() * 100 > frames * HIGH_WATERMARK) {
+                synchronized (flusherSignal) {
+                    flusherSignal.notify();
+                }
+            }
+        }
+    }
+
+    //Writes every dirty block back to the disk in one vectored write;
+    //false if the write failed, leaving the blocks dirty
+    public boolean sync() {
+        return writeBackAll(false);
+    }
+
+    //Writes every dirty block back and empties the cache; false if the
+    //write failed, leaving the cache as it was
+    public boolean flush() {
+        return writeBackAll(true);
+    }
+
+    private boolean validBlocks(int[] blockIds, byte[][] buffers, String op) {
+        if (blockIds.length != buffers.length) {
+            return false;
+        }
+        for (int i = 0; i < blockIds.length; i++) {
+            if (blockIds[i] < 0 || blockIds[i] >= diskBlocks) {
+                SysLib.cerr("threadOS: a wrong blockId for " + op + "\n");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Stripe stripeOf(int blockId) {
+        return stripes[blockId % stripes.length];
+    }
+
+    //Copies a cached block without locking its stripe; false on a miss.
+    //The entry's monitor keeps its frame from being reused meanwhile.
+    private boolean copyCached(int blockId, byte[] buffer) {
+        Entry e = index.get(blockId);
+        if (e == null) {
+            return false;
+        }
+        synchronized (e) {
+            if (e.evicted) {
+                return false;
+            }
+            copyFrame(e, buffer);
+        }
+        e.reference = true;
+        return true;
+    }
+
+    //Both are called with the entry's monitor held
+    private void copyFrame(Entry e, byte[] buffer) {
+        e.data.clear();
+        e.data.get(buffer, 0, blockSize);
+    }
+
+    private void writeFrame(Entry e, byte[] buffer) {
+        e.data.clear();
+        e.data.put(buffer, 0, blockSize);
+    }
+
+    //Returns a copy of a frame whose stripe the caller has locked
+    private byte[] readFrame(Entry e) {
+        byte[] image = new byte[blockSize];
+        synchronized (e) {
+            copyFrame(e, image);
+        }
+        return image;
+    }
+
+    //Locks the stripes of the chosen blocks in stripe order, so that two
+    //threads locking overlapping sets cannot deadlock
+    private boolean[] lockStripes(int[] blockIds, int[] chosen, int n) {
+        boolean[] locked = new boolean[stripes.length];
+        for (int i = 0; i < n; i++) {
+            locked[blockIds[chosen[i]] % stripes.length] = true;
+        }
+        for (int i = 0; i < stripes.length; i++) {
+            if (locked[i]) {
+                stripes[i].lock.lock();
+            }
+        }
+        return locked;
+    }
+
+    private void unlockStripes(boolean[] locked) {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            if (locked[i]) {
+                stripes[i].lock.unlock();
+            }
+        }
+    }
+
+    //Frees enough frames in the stripes of blockIds, which the caller has
+    //locked, for the blocks not cached yet. The dirty victims go to the
+    //disk in one batch while their stripes are still locked, so nobody can
+    //read a block from the disk before its last version gets there, and
+    //only then are their frames released. If the write fails every victim
+    //stays cached and dirty, and false is returned.
+    private boolean makeRoom(int[] blockIds) {
+        int[] needed = new int[stripes.length];
+        Set<Integer> missing = new HashSet<Integer>();
+        for (int i = 0; i < blockIds.length; i++) {
+            if (!index.containsKey(blockIds[i]) && missing.add(blockIds[i])) {
+                needed[blockIds[i] % stripes.length]++;
+            }
+        }
+        List<Entry> victims = new ArrayList<Entry>();
+        Batch dirty = new Batch();
+        for (int i = 0; i < stripes.length; i++) {
+            Stripe stripe = stripes[i];
+            for (int n = Math.min(needed[i], stripe.frames) - stripe.available(); n > 0; n--) {
+                Entry old = stripe.policy.evict();
+                victims.add(old);
+                if (old.dirty) {
+                    dirty.add(old.frame, readFrame(old));
+                }
+            }
+        }
+        if (!dirty.write()) {
+            for (Entry old : victims) {
+                stripeOf(old.frame).policy.insert(old);
+            }
+            return false;
+        }
+        for (Entry old : victims) {
+            drop(old);
+        }
+        return true;
+    }
+
+    //Releases the frame of a victim the policy has already given up, once
+    //it is clean or on the disk
+    private void drop(Entry old) {
+        index.remove(old.frame);
+        synchronized (old) {
+            old.evicted = true;
+        }
+        markClean(old);
+        stripeOf(old.frame).release(old.slot);
+        counters[EVICTIONS].increment();
+    }
+
+    //Puts a copy of a block in its stripe, which the caller has locked.
+    //makeRoom has usually freed a frame for it already; if not, as when a
+    //call brings more blocks to a stripe than it holds, one more victim is
+    //evicted here and written back on its own first. Returns false if that
+    //write fails, leaving the victim cached.
+    private boolean install(int blockId, byte[] buffer, boolean dirty) {
+        Entry e = index.get(blockId);
+        if (e != null) {
+            synchronized (e) {
+                writeFrame(e, buffer);
+            }
+            e.reference = true;
+            if (dirty) {
+                markDirty(e);
+            }
+            return true;
+        }
+        Stripe stripe = stripeOf(blockId);
+        if (stripe.full()) {
+            Entry old = stripe.policy.evict();
+            if (old.dirty) {
+                Batch victim = new Batch();
+                victim.add(old.frame, readFrame(old));
+                if (!victim.write()) {
+                    stripe.policy.insert(old);
+                    return false;
+                }
+            }
+            drop(old);
+        }
+        e = new Entry(blockId, stripe.allocate(), store, blockSize);
+        synchronized (e) {
+            writeFrame(e, buffer);
+        }
+        if (dirty) {
+            markDirty(e);
+        }
+        stripe.policy.insert(e);
+        index.put(blockId, e);
+        return true;
+    }
+
+    private boolean writeBackAll(boolean invalidate) {
+        resizeLock.readLock().lock();
+        boolean[] all = new boolean[stripes.length];
+        Arrays.fill(all, true);
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i].lock.lock();
+        }
+        try {
+            Batch dirty = new Batch();
+            List<Entry> written = new ArrayList<Entry>();
+            for (Entry e : index.values()) {
+                if (e.dirty) {
+                    dirty.add(e.frame, readFrame(e));
+                    written.add(e);
+                }
+            }
+            if (!dirty.write()) {
+                return false;
+            }
+            for (Entry e : written) {
+                markClean(e);
+            }
+            if (invalidate) {
+                for (Entry e : index.values()) {
+                    synchronized (e) {
+                        e.evicted = true;
+                    }
+                    stripeOf(e.frame).release(e.slot);
+                }
+                index.clear();
+                for (int i = 0; i < stripes.length; i++) {
+                    stripes[i].policy.clear();
+                }
+            }
+            return true;
+        } finally {
+            unlockStripes(all);
+            resizeLock.readLock().unlock();
+        }
+    }
+
+    //Both are called with the entry's stripe locked
+    private void markDirty(Entry e) {
+        if (!e.dirty) {
+            e.dirty = true;
+            e.dirtySince = System.currentTimeMillis();
+            dirtyCount.incrementAndGet();
+        }
+    }
+
+    private void markClean(Entry e) {
+        if (e.dirty) {
+            e.dirty = false;
+            dirtyCount.decrementAndGet();
+        }
+    }
+
+    //Starts the kernel thread that writes dirty blocks back in the
+    //background. Once more than HIGH_WATERMARK percent of the frames are
+    //dirty, it writes the oldest ones back until LOW_WATERMARK percent are
+    //left; it also writes back every block dirty for maxAge ms or more.
+    public synchronized void startFlusher(long maxAge) {
+        maxDirtyAge = maxAge;
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    synchronized (flusherSignal) {
+                        try {
+                            flusherSignal.wait(FLUSH_INTERVAL);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                    flushDirty();
+                }
+            }
+        });
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private void flushDirty() {
+        ArrayList<Entry> dirty = new ArrayList<Entry>();
+        for (Entry e : index.values()) {
+            if (e.dirty) {
+                dirty.add(e);
+            }
+        }
+        if (dirty.isEmpty()) {
+            return;
+        }
+        Collections.sort(dirty, new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.dirtySince, b.dirtySince);
+            }
+        });
+        int excess = 0;
+        if (dirty.size() * 100 > frames * HIGH_WATERMARK) {
+            excess = dirty.size() - frames * LOW_WATERMARK / 100;
+        }
+        long now = System.currentTimeMillis();
+        TreeMap<Integer, Entry> chosen = new TreeMap<Integer, Entry>();
+        for (int i = 0; i < dirty.size(); i++) {
+            Entry e = dirty.get(i);
+            if (i < excess || now - e.dirtySince >= maxDirtyAge) {
+                chosen.put(e.frame, e);
+            }
+        }
+        if (chosen.isEmpty()) {
+            return;
+        }
+
+        // dirty neighbours of the chosen blocks join them, so the whole
+        // run goes to the disk in the same pass
+        for (Integer block : new ArrayList<Integer>(chosen.keySet())) {
+            Entry e;
+            for (int b = block + 1; (e = index.get(b)) != null && e.dirty; b++) {
+                chosen.put(b, e);
+            }
+            for (int b = block - 1; b >= 0 && (e = index.get(b)) != null && e.dirty; b--) {
+                chosen.put(b, e);
+            }
+        }
+
+        int[] blockIds = new int[chosen.size()];
+        int[] all = new int[blockIds.length];
+        int n = 0;
+        for (Integer block : chosen.keySet()) {
+            all[n] = n;
+            blockIds[n++] = block;
+        }
+        resizeLock.readLock().lock();
+        boolean[] locked = lockStripes(blockIds, all, n);
+        try {
+            Batch batch = new Batch();
+            List<Entry> written = new ArrayList<Entry>();
+            for (Entry e : chosen.values()) {
+                // skip blocks written back or evicted since they were chosen
+                if (e.dirty && index.get(e.frame) == e) {
+                    batch.add(e.frame, readFrame(e));
+                    written.add(e);
+                }
+            }
+            // on failure they stay dirty, for the next pass or a sync
+            if (batch.write()) {
+                for (Entry e : written) {
+                    markClean(e);
+                }
+            }
+        } finally {
+            unlockStripes(locked);
+            resizeLock.readLock().unlock();
+        }
+    }
+}
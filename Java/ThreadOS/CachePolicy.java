@@ -0,0 +1,14 @@
+// The replacement policy of one cache stripe. Cache calls it with the
+// stripe locked. Read hits do not call it at all: they only set the
+// entry's reference bit, so a policy has to learn about hits from those
+// bits when it next looks at an entry.
+public interface CachePolicy {
+    // a block was just brought into the stripe
+    void insert(Cache.Entry entry);
+
+    // chooses a resident entry to evict from a full stripe and forgets it
+    Cache.Entry evict();
+
+    // forgets every entry, when the cache is flushed
+    void clear();
+}
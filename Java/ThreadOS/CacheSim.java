@@ -0,0 +1,176 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * CSS 430 Final Project
+ *
+ * CacheSim.java
+ *
+ * Replays a cache trace, recorded by booting ThreadOS with
+ * "-cachetrace file", against caches of other sizes and replacement
+ * policies, and prints the hits, misses and disk traffic of each. It runs
+ * outside ThreadOS:
+ *
+ *   java CacheSim trace [blocks,blocks,...] [policy,policy,...]
+ *
+ * The simulated caches are striped and replaced exactly like Cache, using
+ * the same CachePolicy classes. Like Cache.readv, a vectored read looks
+ * up all its blocks before it caches any it missed. Dirty blocks are
+ * written back only when they are evicted and at the end of the trace, as
+ * if the flusher never ran, so "write-backs" is the least disk write
+ * traffic of each setting.
+ */
+public class CacheSim {
+    private static final int[] DEFAULT_SIZES = { 10, 100, 1000 };
+    private static final String[] DEFAULT_POLICIES = { "clock", "2q", "arc" };
+
+    private ArrayList<int[]> calls = new ArrayList<int[]>(); // their blocks
+    private ArrayList<Boolean> writes = new ArrayList<Boolean>();
+    private int accesses = 0;  // blocks in all the calls
+
+    public CacheSim(String fileName) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                StringTokenizer token = new StringTokenizer(line);
+                if (token.countTokens() < 2) {
+                    continue;
+                }
+                writes.add(token.nextToken().equals("w"));
+                int[] blocks = new int[token.countTokens()];
+                for (int i = 0; i < blocks.length; i++) {
+                    blocks[i] = Integer.parseInt(token.nextToken());
+                }
+                calls.add(blocks);
+                accesses += blocks.length;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public int length() {
+        return accesses;
+    }
+
+    //Replays the trace against a cache of cacheBlocks frames and returns
+    //its counters, indexed like Cache.getStats
+    public long[] simulate(int cacheBlocks, String policy) {
+        long[] stats = new long[Cache.STATS];
+        int n = Cache.stripeCount(cacheBlocks);
+        CachePolicy[] policies = new CachePolicy[n];
+        int[] free = new int[n];
+        for (int i = 0; i < n; i++) {
+            free[i] = Cache.stripeFrames(cacheBlocks, i);
+            policies[i] = Cache.newPolicy(policy, free[i]);
+        }
+        HashMap<Integer, Cache.Entry> index = new HashMap<Integer, Cache.Entry>();
+
+        for (int c = 0; c < calls.size(); c++) {
+            int[] blocks = calls.get(c);
+            boolean write = writes.get(c);
+            if (write) {
+                for (int i = 0; i < blocks.length; i++) {
+                    Cache.Entry e = index.get(blocks[i]);
+                    if (e == null) {
+                        stats[Cache.WRITE_MISSES]++;
+                        e = install(blocks[i], policies, free, index, stats);
+                    } else {
+                        stats[Cache.WRITE_HITS]++;
+                        e.reference = true;
+                    }
+                    e.dirty = true;
+                }
+                continue;
+            }
+            boolean[] missed = new boolean[blocks.length];
+            for (int i = 0; i < blocks.length; i++) {
+                Cache.Entry e = index.get(blocks[i]);
+                if (e == null) {
+                    missed[i] = true;
+                    stats[Cache.READ_MISSES]++;
+                } else {
+                    stats[Cache.READ_HITS]++;
+                    e.reference = true;
+                }
+            }
+            for (int i = 0; i < blocks.length; i++) {
+                if (missed[i] && !index.containsKey(blocks[i])) {
+                    install(blocks[i], policies, free, index, stats);
+                }
+            }
+        }
+        for (Cache.Entry e : index.values()) {
+            if (e.dirty) {
+                stats[Cache.WRITE_BACKS]++;
+            }
+        }
+        stats[Cache.FRAMES] = cacheBlocks;
+        return stats;
+    }
+
+    //Caches a clean block in its stripe, evicting another if it is full
+    private static Cache.Entry install(int block, CachePolicy[] policies,
+            int[] free, HashMap<Integer, Cache.Entry> index, long[] stats) {
+        int stripe = block % policies.length;
+        if (free[stripe] == 0) {
+            Cache.Entry old = policies[stripe].evict();
+            index.remove(old.frame);
+            stats[Cache.EVICTIONS]++;
+            if (old.dirty) {
+                stats[Cache.WRITE_BACKS]++;
+            }
+            free[stripe]++;
+        }
+        Cache.Entry e = new Cache.Entry(block);
+        policies[stripe].insert(e);
+        free[stripe]--;
+        index.put(block, e);
+        return e;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.err.println("usage: java CacheSim trace"
+                    + " [blocks,blocks,...] [policy,policy,...]");
+            System.exit(1);
+        }
+        int[] sizes = DEFAULT_SIZES;
+        String[] policies = DEFAULT_POLICIES;
+        if (args.length > 1) {
+            String[] s = args[1].split(",");
+            sizes = new int[s.length];
+            for (int i = 0; i < s.length; i++) {
+                sizes[i] = Integer.parseInt(s[i]);
+            }
+        }
+        if (args.length > 2) {
+            policies = args[2].split(",");
+        }
+
+        CacheSim sim = null;
+        try {
+            sim = new CacheSim(args[0]);
+        } catch (IOException e) {
+            System.err.println("CacheSim: cannot read " + args[0] + ": " + e);
+            System.exit(1);
+        }
+        System.out.println(sim.length() + " block accesses");
+        System.out.printf("%8s %-6s %7s %9s %9s %9s %11s%n", "blocks",
+                "policy", "hit%", "misses", "reads", "evictions", "write-backs");
+        for (int i = 0; i < sizes.length; i++) {
+            for (int j = 0; j < policies.length; j++) {
+                long[] s = sim.simulate(sizes[i], policies[j]);
+                long hits = s[Cache.READ_HITS] + s[Cache.WRITE_HITS];
+                long misses = s[Cache.READ_MISSES] + s[Cache.WRITE_MISSES];
+                // only read misses cost a disk read
+                System.out.printf("%8d %-6s %6.2f%% %9d %9d %9d %11d%n",
+                        sizes[i], policies[j],
+                        100.0 * hits / Math.max(1, hits + misses), misses,
+                        s[Cache.READ_MISSES], s[Cache.EVICTIONS],
+                        s[Cache.WRITE_BACKS]);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+// Second chance: a clock hand sweeps the frames, clearing reference bits,
+// and evicts the first entry that was not used since the hand last passed.
+public class ClockPolicy implements CachePolicy {
+    private Cache.Entry[] slots;   // null if free
+    private int[] free;            // stack of the free slots
+    private int freeCount;
+    private int hand;
+
+    public ClockPolicy(int frames) {
+        slots = new Cache.Entry[frames];
+        free = new int[frames];
+        clear();
+    }
+
+    public void insert(Cache.Entry entry) {
+        if (freeCount > 0) {
+            slots[free[--freeCount]] = entry;
+        }
+    }
+
+    public Cache.Entry evict() {
+        while (true) {
+            hand = (hand + 1) % slots.length;
+            if (slots[hand] != null) {
+                if (!slots[hand].reference) {
+                    Cache.Entry victim = slots[hand];
+                    slots[hand] = null;
+                    free[freeCount++] = hand;
+                    return victim;
+                }
+                slots[hand].reference = false;
+            }
+        }
+    }
+
+    public void clear() {
+        freeCount = 0;
+        for (int i = slots.length - 1; i >= 0; i--) {
+            slots[i] = null;
+            free[freeCount++] = i;
+        }
+        hand = slots.length - 1;
+    }
+
+    public String toString() {
+        return "clock";
+    }
+}
@@ -1,8 +1,14 @@
+import java.util.*;
+
 /**
  * Raghu Tirumala
  * CSS 430 final project
  *
  * Directory class for File System
+ *
+ * Besides the entries themselves, the directory keeps a hash index from
+ * each name to its inode number and the set of free entries, so namei and
+ * ialloc do not scan every entry.
  */
 public class Directory {
     private static int maxChars = 30; // max characters of each file name
@@ -10,6 +16,8 @@ public class Directory {
     // Directory entries
     private int fsize[];        // each element stores a different file size.
     private char fnames[][];    // each element stores a different file name.
+    private Map<String, Short> index = new HashMap<String, Short>(); // name -> inumber
+    private TreeSet<Short> free = new TreeSet<Short>(); // unused inumbers
 
     public Directory( int maxInumber ) { // directory constructor
         fsize = new int[maxInumber];     // maxInumber = max files
@@ -19,11 +27,12 @@ public class Directory {
         String root = "/";                // entry(inode) 0 is "/"
         fsize[0] = root.length( );        // fsize[0] is the size of "/".
         root.getChars( 0, fsize[0], fnames[0], 0 ); // fnames[0] includes "/"
+        rebuildIndex( );
     }
 
     // assumes data[] received directory information from disk
     // initializes the Directory instance with this data[]
-    public int bytes2directory( byte data[] ) {
+    public synchronized int bytes2directory( byte data[] ) {
         int offset = 0;
         for (int i = 0; i < fsize.length; i++) {
             fsize[i] = SysLib.bytes2int(data, offset);
@@ -35,13 +44,15 @@ public class Directory {
             temp.getChars(0, fsize[i], fnames[i], 0);
             offset += (maxChars * 2);
         }
+        rebuildIndex();
         return 0;
     }
 
     // converts and return Directory information into a plain byte array
     // this byte array will be written back to disk
-    public byte[] directory2bytes( ) {
-        byte [] dirArr = new byte[64 * maxChars * 2];
+    public synchronized byte[] directory2bytes( ) {
+        // a size and a name for every entry
+        byte [] dirArr = new byte[fsize.length * (4 + maxChars * 2)];
         int offset = 0;
         for (int i = 0; i < fsize.length; i++) {
             SysLib.int2bytes(fsize[i], dirArr, offset);
@@ -58,38 +69,53 @@ public class Directory {
 
     // filename is the one of a file to be created.
     // allocates a new inode number for this filename
-    public short ialloc( String filename ) {
-        for (int i = 1, l = fsize.length; i < l; i++) {
-            if (fsize[i] == 0) {
-                fsize[i] = Math.min(filename.length(), maxChars);
-                filename.getChars(0, fsize[i], fnames[i], 0);
-                return (short) i;
-            }
+    public synchronized short ialloc( String filename ) {
+        Short i = free.pollFirst();
+        if (i == null) {
+            return -1;
         }
-        return -1;
+        fsize[i] = Math.min(filename.length(), maxChars);
+        filename.getChars(0, fsize[i], fnames[i], 0);
+        index.put(new String(fnames[i], 0, fsize[i]), i);
+        return i;
     }
 
     // deallocates this inumber (inode number)
     // the corresponding file will be deleted.
-    public boolean ifree( short iNumber ) {
+    public synchronized boolean ifree( short iNumber ) {
         if (fsize[iNumber] < 0) {
             return false;
         }
+        if (fsize[iNumber] > 0) {
+            index.remove(new String(fnames[iNumber], 0, fsize[iNumber]), iNumber);
+            if (iNumber > 0) {
+                free.add(iNumber);
+            }
+        }
         fsize[iNumber] = 0;
         return true;
     }
 
     // returns the inumber corresponding to this filename
-    public short namei( String filename ) {
-        String fname;
-        for (int i = 0; i < fsize.length; i++) {
-            if (fsize[i] == filename.length()) {
-                fname = new String(fnames[i], 0, fsize[i]);
-                if (filename.compareTo(fname) == 0) {
-                    return (short) i;
+    public synchronized short namei( String filename ) {
+        Short i = index.get(filename);
+        return (i == null) ? -1 : i;
+    }
+
+    // rebuilds the name index and the free entries from fsize and fnames;
+    // where two entries have the same name, namei finds the first
+    private void rebuildIndex( ) {
+        index.clear();
+        free.clear();
+        for (short i = 0; i < fsize.length; i++) {
+            if (fsize[i] > 0) {
+                String name = new String(fnames[i], 0, fsize[i]);
+                if (!index.containsKey(name)) {
+                    index.put(name, i);
                 }
+            } else if (i > 0) {
+                free.add(i);
             }
         }
-        return -1;
     }
 }
@@ -1,165 +1,278 @@
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
 
 public class Disk extends Thread {
    public static final int blockSize = 512;
-   private final int trackSize = 10;
-   private final int transferTime = 20;
-   private final int delayPerTrack = 1;
+   public static final int trackSize = 10;
    private int diskSize;
+   private DiskModel model;       // how long each block takes to serve
+   private String imageName;      // the host file holding this disk
 
-   private byte data[];
+   // a single mapping cannot exceed 2GB, so the image is mapped in
+   // chunks of this many blocks
+   private static final int chunkBlocks = 1 << 20;
 
-   private int command;
-   private final int IDLE = 0;
-   private final int READ = 1;
-   private final int WRITE = 2;
-   private final int SYNC = 3;
-   private boolean readyBuffer;
+   private FileChannel channel;   // the DISK image file
+   private MappedByteBuffer data[]; // copy-on-write mappings of the image
+   private BitSet dirty;          // blocks written since the last SYNC
 
-   private byte[] buffer;
+   public static final int READ = 1;
+   public static final int WRITE = 2;
+   public static final int SYNC = 3;
+
+   private Vector<DiskRequest> queue; // requests waiting for the disk
    private int currentBlockId;
    private int targetBlockId;
 
+   private long startTime;         // statistics, see getStatistics
+   private int served;
+   private long blocksMoved;
+   private long tracksMoved;
+
    public Disk( int totalBlocks ) {
+      this( totalBlocks, new RotationalDiskModel( ) );
+   }
+
+   public Disk( int totalBlocks, DiskModel model ) {
+      this( totalBlocks, model, "DISK" );
+   }
+
+   public Disk( int totalBlocks, DiskModel model, String imageName ) {
       diskSize = ( totalBlocks > 0 ) ? totalBlocks : 1;
-      data = new byte[ diskSize * blockSize ];
-      command = IDLE;
-      readyBuffer = false;
-      buffer = null;
+      this.model = model;
+      this.imageName = imageName;
+      queue = new Vector<DiskRequest>( );
       currentBlockId = 0;
       targetBlockId = 0;
+      dirty = new BitSet( diskSize );
+      startTime = System.currentTimeMillis( );
+      served = 0;
+      blocksMoved = 0;
+      tracksMoved = 0;
       try {
-         FileInputStream ifstream = new FileInputStream( "DISK" );
-         int readableSize = ( ifstream.available( ) < data.length ) ?
-            ifstream.available( ) : data.length; 
-         ifstream.read( data, 0, readableSize );
-         ifstream.close( );
-      } catch ( FileNotFoundException e ) {
-         SysLib.cerr( "threadOS: DISK created\n" );
+         File image = new File( imageName );
+         if ( image.exists( ) == false )
+            SysLib.cerr( "threadOS: " + imageName + " created\n" );
+         channel = new RandomAccessFile( image, "rw" ).getChannel( );
+         // blocks are paged in on first access instead of being read at
+         // boot. The mapping is private, so the image file itself changes
+         // only on SYNC as it did with the old in-memory copy.
+         data = new MappedByteBuffer[( diskSize - 1 ) / chunkBlocks + 1];
+         for ( int i = 0; i < data.length; i++ ) {
+            int blocks = Math.min( chunkBlocks, diskSize - i * chunkBlocks );
+            data[i] = channel.map( FileChannel.MapMode.PRIVATE,
+                                   ( long )i * chunkBlocks * blockSize,
+                                   ( long )blocks * blockSize );
+         }
       } catch ( IOException e ) {
          SysLib.cerr( e.toString( ) + "\n" );
       }
    }
 
-   public synchronized boolean read( int blockId, byte buffer[] ) {
+   public synchronized DiskRequest read( int blockId, byte buffer[] ) {
+      return readv( new int[] { blockId }, new byte[][] { buffer } );
+   }
+
+   public synchronized DiskRequest write( int blockId, byte buffer[] ) {
+      return writev( new int[] { blockId }, new byte[][] { buffer } );
+   }
+
+   // reads several blocks in one device operation
+   public synchronized DiskRequest readv( int blockIds[], byte buffers[][] ) {
 
-      if ( blockId < 0 || blockId > diskSize ) {
+      if ( validBlocks( blockIds, buffers ) == false ) {
          SysLib.cerr( "threadOS: a wrong blockId for read\n" );
-         return false;
+         return null;
       }
-
-      if ( command == IDLE && readyBuffer == false ) {
-         this.buffer = buffer;
-         targetBlockId = blockId;
-         command = READ;
-         notify( );
-         return true;
-      } else
-         return false;
+      return submit( new DiskRequest( READ, blockIds, buffers ) );
    }
 
-   public synchronized boolean write( int blockId, byte buffer[] ) {
+   // writes several blocks in one device operation
+   public synchronized DiskRequest writev( int blockIds[], byte buffers[][] ) {
 
-      if ( blockId < 0 || blockId > diskSize ) {
+      if ( validBlocks( blockIds, buffers ) == false ) {
          SysLib.cerr( "threadOS: a wrong blockId for write\n" );
-         return false;
+         return null;
       }
-
-      if ( command == IDLE && readyBuffer == false ) {
-         this.buffer = buffer;
-         targetBlockId = blockId;
-         command = WRITE;
-         notify( );
-         return true;
-      } else
-         return false;
+      return submit( new DiskRequest( WRITE, blockIds, buffers ) );
    }
 
-   public synchronized boolean sync( ) {
+   public synchronized DiskRequest sync( ) {
+      return submit( new DiskRequest( SYNC, new int[0], new byte[0][] ) );
+   }
 
-      if ( command == IDLE && readyBuffer == false ) {
-         command = SYNC;
-         notify( );
-         // System.out.println( "DISK sync notified the disk" );
-         return true;
-      } else
-         return false;
+   // writes only the given blocks back to the DISK file, those of them
+   // that changed since the last SYNC
+   public synchronized DiskRequest syncv( int blockIds[] ) {
+      byte none[][] = new byte[blockIds.length][];
+      if ( validBlocks( blockIds, none ) == false ) {
+         SysLib.cerr( "threadOS: a wrong blockId for sync\n" );
+         return null;
+      }
+      return submit( new DiskRequest( SYNC, blockIds, none ) );
    }
 
-   public synchronized boolean testAndResetReady( ) {
-      if ( command == IDLE && readyBuffer == true ) {
-         readyBuffer = false;
-         return true;
-      } else
+   private boolean validBlocks( int blockIds[], byte buffers[][] ) {
+      if ( blockIds.length == 0 || blockIds.length != buffers.length )
          return false;
+      for ( int i = 0; i < blockIds.length; i++ )
+         if ( blockIds[i] < 0 || blockIds[i] >= diskSize )
+            return false;
+      return true;
    }
 
-   public synchronized boolean testReady( ) {
-      if ( command == IDLE && readyBuffer == true ) {
-         return true;
-      } else
-         return false;
+   // the requesting thread waits on the request itself, so only the
+   // disk thread ever waits on this queue
+   private DiskRequest submit( DiskRequest request ) {
+      queue.add( request );
+      notify( );
+      return request;
    }
 
-   private synchronized void waitCommand( ) {
-      while ( command == IDLE ) {
+   private synchronized DiskRequest waitCommand( ) {
+      while ( queue.isEmpty( ) ) {
          try {
             wait( );
          } catch ( InterruptedException e ) {
             SysLib.cerr( e.toString( ) + "\n" );
          }
-         readyBuffer = false;
       }
+      DiskRequest next = nextRequest( );
+      queue.remove( next );
+      return next;
    }
 
-   private void seek( ) {
-      int seekTime = transferTime + delayPerTrack 
-         * Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
-      try {
-         Thread.sleep( seekTime );
-      } catch( InterruptedException e ) {
-         SysLib.cerr( e.toString( ) + "\n" );
+   // C-LOOK: serve the closest request at or beyond the head in block
+   // order, and once none is left there, sweep back to the lowest one.
+   // A SYNC does not move the head, so it is served right away.
+   private DiskRequest nextRequest( ) {
+      DiskRequest ahead = null;
+      DiskRequest lowest = null;
+      for ( int i = 0; i < queue.size( ); i++ ) {
+         DiskRequest request = queue.elementAt( i );
+         if ( request.command == SYNC )
+            return request;
+         int block = request.firstBlock( );
+         if ( block >= currentBlockId
+              && ( ahead == null || block < ahead.firstBlock( ) ) )
+            ahead = request;
+         if ( lowest == null || block < lowest.firstBlock( ) )
+            lowest = request;
       }
+      return ( ahead != null ) ? ahead : lowest;
+   }
+
+   private void seek( int command, boolean contiguous ) {
+      long seekTime = model.serviceTime( command, currentBlockId,
+                                         targetBlockId, contiguous,
+                                         queue.size( ) );
+      if ( seekTime > 0 ) {
+         try {
+            Thread.sleep( seekTime / 1000, ( int )( seekTime % 1000 ) * 1000 );
+         } catch( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+      }
+      tracksMoved += Math.abs( targetBlockId/trackSize - currentBlockId/trackSize );
       currentBlockId = targetBlockId;
    }
 
-   private synchronized void finishCommand( ) {
-      command = IDLE;
-      readyBuffer = true;
-      SysLib.disk( ); // a disk interrupt
+   // moves every block of a request in ascending block order
+   private void transfer( DiskRequest request ) {
+      int order[] = new int[request.blockIds.length];
+      for ( int i = 0; i < order.length; i++ ) {
+         int j = i;
+         for ( ; j > 0 && request.blockIds[order[j - 1]] > request.blockIds[i]; j-- )
+            order[j] = order[j - 1];
+         order[j] = i;
+      }
+      int previous = -1;
+      for ( int i = 0; i < order.length; i++ ) {
+         targetBlockId = request.blockIds[order[i]];
+         seek( request.command, i > 0 && targetBlockId == previous + 1 );
+         ByteBuffer chunk = data[targetBlockId / chunkBlocks];
+         chunk.position( ( targetBlockId % chunkBlocks ) * blockSize );
+         if ( request.command == READ )
+            chunk.get( request.buffers[order[i]], 0, blockSize );
+         else {
+            chunk.put( request.buffers[order[i]], 0, blockSize );
+            dirty.set( targetBlockId );
+         }
+         previous = targetBlockId;
+      }
+      blocksMoved += order.length;
+   }
+
+   // reports the requests served since boot and the throughput achieved
+   public synchronized String getStatistics( ) {
+      long elapsed = Math.max( System.currentTimeMillis( ) - startTime, 1 );
+      return String.format( "threadOS: %s (%s) served %d requests (%d blocks) "
+                            + "in %d ms (%.1f requests/sec, %.1f blocks/sec, "
+                            + "%.2f tracks/request)\n",
+                            imageName, model, served, blocksMoved, elapsed,
+                            served * 1000.0 / elapsed,
+                            blocksMoved * 1000.0 / elapsed,
+                            ( double )tracksMoved / Math.max( served, 1 ) );
+   }
+
+   // writes each run of contiguous blocks in the given set of dirty
+   // blocks back to the DISK file with a single positional write, leaving
+   // clean blocks untouched
+   private void writeDirtyBlocks( BitSet blocks ) throws IOException {
+      int first = blocks.nextSetBit( 0 );
+      while ( first >= 0 ) {
+         int last = blocks.nextClearBit( first ); // one past the run
+         // a run is cut at the end of its chunk
+         int chunk = first / chunkBlocks;
+         last = ( int )Math.min( last, ( long )( chunk + 1 ) * chunkBlocks );
+         ByteBuffer run = data[chunk].duplicate( );
+         run.limit( ( last - chunk * chunkBlocks ) * blockSize );
+         run.position( ( first - chunk * chunkBlocks ) * blockSize );
+         long offset = ( long )first * blockSize;
+         while ( run.hasRemaining( ) )
+            offset += channel.write( run, offset );
+         dirty.clear( first, last );
+         blocks.clear( first, last );
+         first = blocks.nextSetBit( last );
+      }
+   }
+
+   private void finishCommand( DiskRequest request ) {
+      synchronized ( this ) {
+         served++;
+      }
+      SysLib.disk( request ); // a disk interrupt for this request
    }
 
    public void run ( ) {
 
       while ( true ) {
-         waitCommand( );
-         seek( );
-         // System.out.println( "Disk: command = " + command );
-         switch( command ) {
+         DiskRequest request = waitCommand( );
+         // System.out.println( "Disk: command = " + request.command );
+         switch( request.command ) {
             case READ:
-               System.arraycopy( data, targetBlockId * blockSize, 
-                     buffer, 0, 
-                     blockSize );
-               break;
             case WRITE:
-               System.arraycopy( buffer, 0, 
-                     data, targetBlockId * blockSize, 
-                     blockSize );
+               transfer( request );
                break;
             case SYNC:
                try {
-                  FileOutputStream ofstream = new FileOutputStream( "DISK" );
-                  ofstream.write( data );
-                  ofstream.close( );
-               } catch ( FileNotFoundException e ) {
-                  SysLib.cerr( e.toString( ) );
+                  if ( request.blockIds.length == 0 )
+                     writeDirtyBlocks( dirty );
+                  else {
+                     BitSet blocks = new BitSet( diskSize );
+                     for ( int i = 0; i < request.blockIds.length; i++ )
+                        blocks.set( request.blockIds[i] );
+                     blocks.and( dirty );
+                     writeDirtyBlocks( blocks );
+                  }
                } catch ( IOException e ) {
                   SysLib.cerr( e.toString( ) );
                }
-               // SysLib.cerr( "threadOS: DISK synchronized\n" );
                break;
          }
-         finishCommand( );
+         finishCommand( request );
       }
    }
 }
@@ -0,0 +1,10 @@
+// The latency model of the storage device behind a Disk. The Disk asks it
+// how long each block takes and sleeps for that long.
+public interface DiskModel {
+   // returns the microseconds needed to reach toBlock from fromBlock and
+   // transfer it. contiguous is true when toBlock directly follows
+   // fromBlock within one request, and queueDepth is the number of
+   // requests still waiting behind this one.
+   long serviceTime( int command, int fromBlock, int toBlock,
+                     boolean contiguous, int queueDepth );
+}
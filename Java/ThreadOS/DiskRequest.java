@@ -0,0 +1,92 @@
+public class DiskRequest {
+   public final int command;      // Disk.READ, Disk.WRITE, or Disk.SYNC
+   public final int blockIds[];   // the target blocks (none: SYNC all)
+   public final byte buffers[][]; // the data to read into or write from
+   public final DiskRequest parts[]; // per-disk parts of a striped request
+   private boolean finished;      // set once the disk has serviced this
+   private DiskRequest whole;     // the striped request this is part of
+   private int unfinishedParts;   // parts of a striped request still queued
+
+   public DiskRequest( int command, int blockId, byte buffer[] ) {
+      this( command, new int[] { blockId }, new byte[][] { buffer } );
+   }
+
+   public DiskRequest( int command, int blockIds[], byte buffers[][] ) {
+      this.command = command;
+      this.blockIds = blockIds;
+      this.buffers = buffers;
+      parts = null;
+      finished = false;
+      whole = null;
+      unfinishedParts = 0;
+   }
+
+   // a request split over the disks of a StripedDisk; parts[i] is the
+   // share of disk i, or null if it has no blocks there
+   public DiskRequest( int command, DiskRequest parts[] ) {
+      this.command = command;
+      blockIds = new int[0];
+      buffers = new byte[0][];
+      this.parts = parts;
+      whole = null;
+      // a part may finish while the others are being attached, so it
+      // must not report back until the count is complete
+      synchronized ( this ) {
+         unfinishedParts = 0;
+         for ( int i = 0; i < parts.length; i++ )
+            if ( parts[i] != null && parts[i].attachTo( this ) )
+               unfinishedParts++;
+         finished = ( unfinishedParts == 0 );
+      }
+   }
+
+   // the lowest block, where the disk head has to go first
+   public int firstBlock( ) {
+      int first = Integer.MAX_VALUE;
+      for ( int i = 0; i < blockIds.length; i++ )
+         first = Math.min( first, blockIds[i] );
+      return first;
+   }
+
+   public synchronized boolean isFinished( ) {
+      return finished;
+   }
+
+   // blocks the requesting thread until the disk interrupt for this
+   // request arrives. Only the owner waits here, so nobody else wakes up.
+   public synchronized void waitForCompletion( ) {
+      while ( finished == false ) {
+         try {
+            wait( );
+         } catch ( InterruptedException e ) {
+            SysLib.cerr( e.toString( ) + "\n" );
+         }
+      }
+   }
+
+   // called from the disk interrupt once this request has been serviced
+   void complete( ) {
+      DiskRequest owner;
+      synchronized ( this ) {
+         finished = true;
+         owner = whole;
+         notify( );
+      }
+      if ( owner != null )
+         owner.partCompleted( );
+   }
+
+   private synchronized boolean attachTo( DiskRequest request ) {
+      if ( finished )
+         return false;
+      whole = request;
+      return true;
+   }
+
+   private synchronized void partCompleted( ) {
+      if ( --unfinishedParts == 0 ) {
+         finished = true;
+         notify( );
+      }
+   }
+}
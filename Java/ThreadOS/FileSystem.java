@@ -1,3 +1,5 @@
+import java.util.Arrays;
+
 /**
  * Raghu Tirumala
  * CSS430 Final Project
@@ -5,13 +7,27 @@
  * FileSystem class
  */
 public class FileSystem {
+    private static final int READ_AHEAD_MIN = 4;   // blocks, once sequential
+    private static final int READ_AHEAD_MAX = 64;  // blocks
     private SuperBlock superBlock;
     private FileTable fileTable;
     private Directory directory;
+    private ReadAhead prefetcher = new ReadAhead();
+    private Cache cache;    // sizes the read-ahead window, may be null
 
     public FileSystem(int blocks) {
-        //Initialize superBlock, fileTable, and directory
-        superBlock = new SuperBlock(blocks);
+        this(blocks, 0, null);
+    }
+
+    //formatVersion is the on-disk format used if the volume has to be
+    //formatted (see Inode.setVersion), or 0 to keep the volume's own (see
+    //SuperBlock). cache is the buffer cache the file system reads through.
+    public FileSystem(int blocks, int formatVersion, Cache cache) {
+        this.cache = cache;
+        //Replay the metadata journal, then initialize superBlock,
+        //fileTable, and directory
+        Journal.mount(blocks);
+        superBlock = new SuperBlock(blocks, formatVersion);
         directory = new Directory(superBlock.totalInodes);
         fileTable = new FileTable(directory);
         byte[] dirData;
@@ -33,6 +49,8 @@ public class FileSystem {
         write(fte, data);
         close(fte);
         superBlock.sync();
+        Inode.writeBackAll();
+        Journal.sync();
     }
 
     public FileTableEntry open(String filename, String mode) {
@@ -81,8 +99,13 @@ public class FileSystem {
         return true;
     }
 
-    //Return dataSize of file (in bytes)
+    //Return dataSize of file (in bytes), or Integer.MAX_VALUE if it is
+    //larger than an int can hold (see length)
     public int fsize(FileTableEntry fte) {
+        return (int) Math.min(length(fte), Integer.MAX_VALUE);
+    }
+
+    public long length(FileTableEntry fte) {
         //Invalid fte
         if (fte == null || fte.inode == null) {
             return -1;
@@ -97,45 +120,89 @@ public class FileSystem {
             return -1;
         }
 
-        int dataSize  = buffer.length;   //set total dataSize of data to read
+        int blockSize = 512;
         int rBuff = 0;                   //track data in read
-        int leftToRead = 0;              //track how much is left to read
 
         synchronized(fte)
         {
-            while (fte.seekPtr < fsize(fte) && (dataSize > 0))
-            {
-                int currentBlock = fte.inode.findTargetBlock(fte.seekPtr);
-                if (currentBlock == -1)
-                {
-
-                    break;
-                }
-                byte[] data = new byte[512];
-                SysLib.rawread(currentBlock, data);
+            long end = Math.min(fte.seekPtr + buffer.length, length(fte));
+            if (end <= fte.seekPtr) {
+                return 0;
+            }
 
-                int dataOffset = fte.seekPtr % 512;
-                int blocksLeft = 512 - leftToRead;
-                int fileLeft = fsize(fte) - fte.seekPtr;
+            // look up every block of the read first so that they can all
+            // be fetched from the disk in one vectored request
+            int first = (int) (fte.seekPtr / blockSize);
+            int[] blocks = new int[(int) ((end - 1) / blockSize) - first + 1];
+            int count = fte.inode.mapBlocks(first, blocks);
+            if (count == 0) {
+                return 0;
+            }
+            if (count < blocks.length) {
+                blocks = Arrays.copyOf(blocks, count);
+                end = (long) (first + count) * blockSize;
+            }
+            updateReadAhead(fte, first);
 
-                if (blocksLeft < fileLeft)
-                    leftToRead = blocksLeft;
-                else
-                    leftToRead = fileLeft;
+            // blocks read ahead are found in the cache
+            byte[][] data = new byte[count][blockSize];
+            readBlocks(fte, blocks, data);
+            startReadAhead(fte, first + count - 1);
 
-                if (leftToRead > dataSize)
-                    leftToRead = dataSize;
+            for (int i = 0; i < count; i++) {
+                int dataOffset = (int) (fte.seekPtr % blockSize);
+                int leftToRead = (int) Math.min(blockSize - dataOffset, end - fte.seekPtr);
 
-                System.arraycopy(data, dataOffset, buffer, rBuff, leftToRead);
-                 rBuff+= leftToRead;
+                System.arraycopy(data[i], dataOffset, buffer, rBuff, leftToRead);
+                rBuff += leftToRead;
                 fte.seekPtr += leftToRead;
-                dataSize -= leftToRead;
             }
             return rBuff;
         }
     }
 
 
+    //Sequential access detection. A read that starts in the block the last
+    //one ended in, or in the next one, continues the stream and doubles
+    //the read-ahead window each time it moves on; any other read turns
+    //read-ahead off.
+    private void updateReadAhead(FileTableEntry fte, int first) {
+        if (first == fte.readBlock + 1) {
+            fte.readAhead = (fte.readAhead == 0) ? READ_AHEAD_MIN
+                    : Math.min(fte.readAhead * 2, READ_AHEAD_MAX);
+        } else if (first != fte.readBlock) {
+            fte.readAhead = 0;
+            fte.readAheadEnd = 0;
+        }
+    }
+
+    //Called after a read ending in file block last. Once less than half a
+    //window is left read ahead of the reader, the blocks up to a full
+    //window past it are read into the cache asynchronously. The window
+    //never takes more than half the cache, or the blocks would evict each
+    //other before they are read.
+    private void startReadAhead(FileTableEntry fte, int last) {
+        fte.readBlock = last;
+        // the root directory is read through the journal instead
+        if (fte.readAhead == 0 || fte.iNumber == 0) {
+            return;
+        }
+        int window = (cache == null) ? fte.readAhead
+                : Math.min(fte.readAhead, cache.size() / 2);
+        int next = Math.max(last + 1, fte.readAheadEnd);
+        if (window == 0 || next - last > window / 2) {
+            return;
+        }
+        int end = (int) Math.min(last + window,
+                (length(fte) - 1) / Disk.blockSize);
+        int[] blocks = new int[Math.max(end - next + 1, 0)];
+        int count = fte.inode.mapBlocks(next, blocks);
+        if (count > 0) {
+            prefetcher.request(Arrays.copyOf(blocks, count));
+            fte.readAheadEnd = next + count;
+        }
+    }
+
     //Write to file in the FileTableEntry from the data passed in
     public int write(FileTableEntry fte, byte[] data) {
         //Check if fte is in correct mode to write to
@@ -147,72 +214,172 @@ public class FileSystem {
         int blockSize = 512;
 
         synchronized (fte) {
-            while (dataSize > 0) {
-                int location = fte.inode.findTargetBlock(fte.seekPtr);
-
-                // if current block is null
-                if (location == -1) {
-                    short newLocation = (short) superBlock.nextFreeBlock();
-
-                    int testPtr = fte.inode.getIndexNumber(fte.seekPtr, newLocation);
-
-                    if (testPtr == -3)
-                    {
-                        short freeBlock = (short) superBlock.nextFreeBlock();
-                        // indirect pointer is empty
-                        if (!fte.inode.setIndexBlock(freeBlock)) {
-                            return -1;
-                        }
-                        // check block pointer
-                        if (fte.inode.getIndexNumber(fte.seekPtr, newLocation) != 0) {
-                            return -1;
-                        }
-                    }
-                    else if (testPtr == -2 || testPtr == -1) {
-                        return -1;
-                    }
-                    location = newLocation;
+            if (dataSize == 0) {
+                return 0;
+            }
+            // map (allocating where needed) every block the write covers,
+            // then move them all with one vectored read and one vectored
+            // write instead of a disk round trip per block
+            int first = (int) (fte.seekPtr / blockSize);
+            int[] blocks = new int[(int) ((fte.seekPtr + dataSize - 1) / blockSize) - first + 1];
+            int[] spare = new int[2]; // free run taken for the write: next, end
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = getWriteBlock(fte, (long) (first + i) * blockSize,
+                        spare, blocks.length - i);
+                if (blocks[i] == -1) {
+                    returnSpare(spare);
+                    return -1;
                 }
+            }
+            returnSpare(spare);
+
+            // only a block the write covers partly, and that already holds
+            // file data, needs its old contents; the others start zeroed
+            byte [][] tempBuff = new byte[blocks.length][blockSize];
+            long end = fte.seekPtr + dataSize;
+            int last = blocks.length - 1;
+            boolean readFirst = fte.seekPtr % blockSize != 0
+                    || (last == 0 && end % blockSize != 0);
+            boolean readLast = last > 0 && end % blockSize != 0;
+            readFirst &= (long) first * blockSize < fte.inode.length;
+            readLast &= (long) (first + last) * blockSize < fte.inode.length;
+            if (readFirst && readLast) {
+                readBlocks(fte, new int[] { blocks[0], blocks[last] },
+                        new byte[][] { tempBuff[0], tempBuff[last] });
+            } else if (readFirst) {
+                readBlocks(fte, new int[] { blocks[0] },
+                        new byte[][] { tempBuff[0] });
+            } else if (readLast) {
+                readBlocks(fte, new int[] { blocks[last] },
+                        new byte[][] { tempBuff[last] });
+            }
 
-                byte [] tempBuff = new byte[blockSize];
-                SysLib.rawread(location, tempBuff);
-
-                int tempPtr = fte.seekPtr % blockSize;
-                int diff = blockSize - tempPtr;
+            for (int i = 0; i < blocks.length; i++) {
+                int tempPtr = (int) (fte.seekPtr % blockSize);
+                int diff = Math.min(blockSize - tempPtr, dataSize);
 
-                if (diff > dataSize) {
-                    System.arraycopy(data, bytesWritten, tempBuff, tempPtr, dataSize);
-                    SysLib.rawwrite(location, tempBuff);
+                System.arraycopy(data, bytesWritten, tempBuff[i], tempPtr, diff);
 
-                    fte.seekPtr += dataSize;
-                    bytesWritten += dataSize;
-                    dataSize = 0;
-                } else {
-                    System.arraycopy(data, bytesWritten, tempBuff, tempPtr, diff);
-                    SysLib.rawwrite(location, tempBuff);
+                fte.seekPtr += diff;
+                bytesWritten += diff;
+                dataSize -= diff;
+            }
+            writeBlocks(fte, blocks, tempBuff);
 
-                    fte.seekPtr += diff;
-                    bytesWritten += diff;
-                    dataSize -= diff;
+            // other entries of the file share the inode
+            synchronized (fte.inode) {
+                if (fte.seekPtr > fte.inode.length) {
+                    fte.inode.length = fte.seekPtr;
                 }
             }
+            // saved with its neighbours later, or when the file is closed
+            fte.inode.markDirty(fte.iNumber);
+            return bytesWritten;
+        }
+
+    }
 
-            if (fte.seekPtr > fte.inode.length) {
-                fte.inode.length = fte.seekPtr;
+    //Reads blocks of a file. The root directory is metadata, so its
+    //blocks go through the journal like inodes do.
+    private void readBlocks(FileTableEntry fte, int[] blocks, byte[][] data) {
+        if (fte.iNumber == 0) {
+            for (int i = 0; i < blocks.length; i++) {
+                Journal.read(blocks[i], data[i]);
             }
-            fte.inode.toDisk(fte.iNumber);
-            return bytesWritten;
+        } else {
+            SysLib.creadv(blocks, data);
+        }
+    }
+
+    //Writes blocks of a file, journaling those of the root directory
+    private void writeBlocks(FileTableEntry fte, int[] blocks, byte[][] data) {
+        if (fte.iNumber == 0) {
+            for (int i = 0; i < blocks.length; i++) {
+                Journal.write(blocks[i], data[i]);
+            }
+        } else {
+            SysLib.cwritev(blocks, data);
+        }
+    }
+
+    //Returns the block holding the given offset of the file, allocating a
+    //new one (and the indirect or extent overflow block if needed) when it
+    //is not mapped yet. Returns -1 if the block cannot be mapped. The
+    //inode is locked so that entries of the same file writing at once
+    //cannot both map the block.
+    //
+    //New blocks come from spare, a run of free blocks; when it is used up
+    //the next run is taken with room for the wanted blocks still to be
+    //mapped, right after the file's previous block if it can be, so that
+    //the file stays contiguous.
+    private int getWriteBlock(FileTableEntry fte, long offset, int[] spare,
+            int wanted) {
+        synchronized (fte.inode) {
+            int location = fte.inode.findTargetBlock(offset);
+
+            // if current block is null
+            if (location == -1) {
+                if (spare[0] == spare[1]) {
+                    int goal = (offset < Disk.blockSize) ? -1 :
+                            fte.inode.findTargetBlock(offset - Disk.blockSize);
+                    goal = (goal == -1) ? superBlock.homeBlock(fte.iNumber) : goal + 1;
+                    int[] length = new int[1];
+                    int run = superBlock.nextFreeRun(goal, wanted, length);
+                    if (run == -1) {
+                        return -1; // the disk is full
+                    }
+                    spare[0] = run;
+                    spare[1] = run + length[0];
+                }
+                int newLocation = spare[0]++;
+
+                int testPtr = mapWriteBlock(fte.inode, offset, newLocation);
+
+                // an indirect block on the way is missing (up to one per
+                // level), or the extents are full
+                while (testPtr == -3)
+                {
+                    int freeBlock = superBlock.nextFreeBlock(spare[1]);
+                    boolean added = Inode.extentBased() ?
+                            fte.inode.setExtentBlock(freeBlock) :
+                            freeBlock != -1 && fte.inode.setIndexBlock(offset, freeBlock);
+                    if (!added) {
+                        spare[0]--; // newLocation goes back to the run
+                        return -1;
+                    }
+                    // check block pointer
+                    testPtr = mapWriteBlock(fte.inode, offset, newLocation);
+                }
+                if (testPtr == -2 || testPtr == -1) {
+                    spare[0]--;
+                    return -1;
+                }
+                location = newLocation;
+            }
+            return location;
         }
+    }
+
+    //Frees the blocks of a run that a write did not use
+    private void returnSpare(int[] spare) {
+        for (int block = spare[0]; block < spare[1]; block++) {
+            superBlock.returnBlock(block);
+        }
+        spare[0] = spare[1];
+    }
 
+    private int mapWriteBlock(Inode inode, long offset, int block) {
+        return Inode.extentBased() ? inode.addExtentBlock(offset, block)
+                : inode.getIndexNumber(offset, block);
     }
 
-    public synchronized int seek(FileTableEntry fte, int offset, int loc){
-        int eof;
+    public synchronized long seek(FileTableEntry fte, long offset, int loc){
+        long eof;
         if (fte == null) {
             return -1;
         }
         synchronized (fte) {
-            eof = fsize(fte);
+            eof = length(fte);
             switch (loc) {
                 case 0 :
                     fte.seekPtr = offset;
@@ -251,26 +418,28 @@ public class FileSystem {
     }
 
     private boolean deallocBlocks(FileTableEntry fte){
+        //Another entry open on the file would see it shrink under it
         if (fte.inode.count != 1) {
             SysLib.cerr("Null Pointer");
             return false;
         }
-        for (short bId = 0; bId < fte.inode.directSize; bId++) {
-            if (fte.inode.direct[bId] != -1)
-            {
-                superBlock.returnBlock(bId);
-                fte.inode.direct[bId] = -1;
-            }
-        }
-        byte [] data = fte.inode.freeIndirectBlock();
-        if (data != null) {
-            short blockId;
-            while((blockId = SysLib.bytes2short(data, 0)) != -1)
-            {
-                superBlock.returnBlock(blockId);
+        // the inode writer takes Inode.class before an inode's lock, so
+        // truncation does too; both are held until the inode is saved
+        synchronized (Inode.class) {
+            synchronized (fte.inode) {
+                // the free list of a volume without a bitmap is a stack,
+                // so returning the blocks last first hands them out again
+                // in their old, contiguous order
+                int[] blocks = fte.inode.releaseBlocks();
+                for (int i = blocks.length - 1; i >= 0; i--) {
+                    superBlock.returnBlock(blocks[i]);
+                }
+                fte.inode.length = 0;
+                // saved at once, before the freed blocks can be handed
+                // out again
+                fte.inode.toDisk(fte.iNumber);
             }
         }
-        fte.inode.toDisk(fte.iNumber);
         return true;
     }
 
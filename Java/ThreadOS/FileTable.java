@@ -10,18 +10,21 @@ import java.util.Vector;
 public class FileTable {
     private Vector table;         // the actual entity of this file table
     private Directory dir;        // the root directory
+    private InodeTable inodes;    // shared by every entry of a file
 
     public FileTable( Directory directory ) { // constructor
         table = new Vector( );     // instantiate a file (structure) table
         dir = directory;           // receive a reference to the Director
+        inodes = new InodeTable( );
     }                             // from the file system
 
     // major public methods
 
     // allocate a new file (structure) table entry for this file name
-    // allocate/retrieve and register the corresponding inode using dir
+    // allocate/retrieve and register the corresponding inode using dir,
+    // sharing the inode of a file that is already open or cached
     // increment this inode's count
-    // immediately write back this inode to the disk
+    // mark this inode to be written back to the disk
     // return a reference to this file (structure) table entry
     public synchronized FileTableEntry falloc(String filename, String mode) {
         short entryMode = getEntryMode(mode);
@@ -45,10 +48,10 @@ public class FileTable {
                 if ((iNumber = dir.ialloc(filename)) < 0) {
                     return null;
                 }
-                fileNode = new Inode();
+                fileNode = inodes.create(iNumber);
                 break;
             }
-            fileNode = new Inode(iNumber);
+            fileNode = inodes.get(iNumber);
             if (fileNode.flag == 4) {
                 return null;
             }
@@ -64,14 +67,14 @@ public class FileTable {
             }
         }
         fileNode.count++;
-        fileNode.toDisk(iNumber);
+        fileNode.markDirty(iNumber);
         fte = new FileTableEntry(fileNode, iNumber, mode);
         table.add(fte);
         return fte;
     }
 
     // receive a file table entry reference
-    // save the corresponding inode to the disk
+    // save the corresponding inode to the disk once its last entry is freed
     // free this file table entry.
     // return true if this file table entry found in my table
     public synchronized boolean ffree(FileTableEntry e) {
@@ -92,10 +95,11 @@ public class FileTable {
 
         if (fileNode.count == 0) {
             fileNode.flag = 0;
+            fileNode.toDisk(iNumber);
+        } else {
+            fileNode.markDirty(iNumber);
         }
 
-        fileNode.toDisk(iNumber);
-
         if (fileNode.flag == 0 || fileNode.flag == 1) {
             notify();
         }
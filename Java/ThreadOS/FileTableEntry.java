@@ -6,11 +6,14 @@
  *
  */
 public class FileTableEntry {  // Each table entry should have
-   public int seekPtr;        //    a file seek pointer
+   public long seekPtr;       //    a file seek pointer
    public final Inode inode;  //    a reference to an inode
    public final short iNumber;//    this inode number
    public int count;          //    a count to maintain #threads sharing this
    public final String mode;  //    "r", "w", "w+", or "a"
+   public int readBlock;      //    the file block the last read ended in
+   public int readAhead;      //    read-ahead window in blocks, 0 if off
+   public int readAheadEnd;   //    the file block after those read ahead
 
 
    FileTableEntry ( Inode i, short inumber, String m ) {
@@ -19,6 +22,9 @@ public class FileTableEntry {  // Each table entry should have
       iNumber = inumber;     
       count = 1;           // at least one thread is using this entry.
       mode = m;            // once file access mode is set, it never changes.
+      readBlock = -1;      // a read from the file top looks sequential
+      readAhead = 0;
+      readAheadEnd = 0;
 
       if ( mode.compareTo( "a" ) == 0 )
          seekPtr = inode.length;
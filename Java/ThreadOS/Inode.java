@@ -1,3 +1,5 @@
+import java.util.*;
+
 /**
  * Raghu Tirumala
  * CSS430 Final Project
@@ -6,14 +8,44 @@
  */
 
 public class Inode {
-    public final static int iNodeSize = 32;       // fix to 32 bytes
+    public final static int iNodeSize = 32;       // fix to 32 bytes (format 1)
+    public final static int iNodeSizeV2 = 64;     // format 2: int pointers, long length
     public final static int directSize = 11;      // # direct pointers
+    public final static int inodeExtents = 6;     // format 3: extents in the inode
+    private final static int blockExtents = 63;   // extents in an overflow block,
+                                                  // which ends with the next one
+
+    private static final int WRITE_BACK_INTERVAL = 1000; // ms between write-backs
+
+    private static int version = 1;               // format of the mounted volume
+    // inodes changed in memory but not saved yet, by inode number, so that
+    // those sharing a block are next to each other (see markDirty). The
+    // writer thread saves inodes that are in use, so the methods that map
+    // blocks are synchronized.
+    private static TreeMap<Short, Inode> dirtyInodes = new TreeMap<Short, Inode>();
+    private static Thread writer = null;
 
-    public int length;                             // file size in bytes
+    public long length;                            // file size in bytes
     public short count;                            // # file-table entries pointing to this
     public short flag;                             // 0 = unused, 1 = used, 2 = read, 3 = write, 4 = delete
-    public short direct[] = new short[directSize]; // direct pointers
-    public short indirect;                         // a indirect pointer
+    public int direct[] = new int[directSize];     // direct pointers
+    public int indirect;                           // a indirect pointer
+    public int doubleIndirect;                     // format 4 only
+    public int tripleIndirect;                     // format 4 only
+    // the pointers of the indirect blocks read so far, decoded, and the
+    // ones changed since the inode was last saved
+    private Map<Integer, int[]> indexBlocks = new HashMap<Integer, int[]>();
+    private Set<Integer> dirtyIndex = new LinkedHashSet<Integer>();
+
+    // format 3 maps the file as extents, runs of contiguous blocks, instead
+    // of a pointer per block. Extents past the first inodeExtents are kept
+    // in a chain of overflow blocks starting at extentBlock.
+    private int extentStart[] = new int[inodeExtents];
+    private int extentLength[] = new int[inodeExtents];
+    private int extents = 0;                       // # extents in use
+    private int extentBlock = -1;                  // first overflow block
+    private int overflow[] = null;                 // the chain, once read
+    private boolean extentsDirty = false;          // overflow not written back
 
     public Inode( ) {                                     // a default constructor
         length = 0;
@@ -22,124 +54,489 @@ public class Inode {
         for ( int i = 0; i < directSize; i++ )
             direct[i] = -1;
         indirect = -1;
+        doubleIndirect = -1;
+        tripleIndirect = -1;
     }
 
-    //Reads Inode from the disk
+    //Reads Inode from the disk, saving a changed copy of it first
     public Inode(short iNumber) {
-        int blockNum = 1 + iNumber / 16;
+        synchronized (Inode.class) {
+            Inode changed = dirtyInodes.get(iNumber);
+            if (changed != null) {
+                changed.toDisk(iNumber);
+            }
+        }
+        int blockNum = offset(iNumber);
         byte[] data = new byte[Disk.blockSize];
-        SysLib.rawread(blockNum, data);
-        int offset = (iNumber % 16) * iNodeSize;
+        Journal.read(blockNum, data);
+        int offset = (iNumber % inodesPerBlock()) * size();
 
-        length = SysLib.bytes2int(data, offset);
-        offset += 4;
+        if (version == 1) {
+            length = SysLib.bytes2int(data, offset);
+            offset += 4;
+        } else {
+            length = SysLib.bytes2long(data, offset);
+            offset += 8;
+        }
         count = SysLib.bytes2short(data, offset);
         offset += 2;
         flag = SysLib.bytes2short(data, offset);
         offset += 2;
 
+        if (version == 3) {
+            for (int i = 0; i < inodeExtents; i++) {
+                extentStart[i] = SysLib.bytes2int(data, offset);
+                extentLength[i] = SysLib.bytes2int(data, offset + 4);
+                offset += 8;
+                if (extentStart[i] != -1) {
+                    extents = i + 1;
+                }
+            }
+            extentBlock = SysLib.bytes2int(data, offset);
+            for (int i = 0; i < directSize; i++)
+                direct[i] = -1;
+            indirect = -1;
+            doubleIndirect = -1;
+            tripleIndirect = -1;
+            return;
+        }
+
         for(int i = 0; i < directSize; i++){
-            direct[i] = SysLib.bytes2short(data, offset);
-            offset += 2;
+            if (i < directPointers()) {
+                direct[i] = getPointer(data, offset);
+                offset += pointerSize();
+            } else {
+                direct[i] = -1;
+            }
+        }
+        indirect = getPointer(data, offset);
+        doubleIndirect = -1;
+        tripleIndirect = -1;
+        if (version == 4) {
+            doubleIndirect = getPointer(data, offset + 4);
+            tripleIndirect = getPointer(data, offset + 8);
         }
-        indirect = SysLib.bytes2short(data, offset);
     }
 
     public int toDisk( short iNumber ) {                  // save to disk as the i-th inode
+        synchronized (Inode.class) {
+            dirtyInodes.remove(iNumber, this);
+            // patched into its block by the journal, which keeps
+            // concurrent updates of neighbouring inodes from overwriting
+            // each other
+            Journal.update(offset(iNumber),
+                    (iNumber % inodesPerBlock()) * size(), encode());
+        }
+        return 0; //Success
+    }
+
+    //Marks the inode as changed in memory. It is saved later, together
+    //with the other changed inodes of its block, by writeBackAll, unless
+    //toDisk saves it first.
+    public void markDirty(short iNumber) {
+        synchronized (Inode.class) {
+            Inode old = dirtyInodes.put(iNumber, this);
+            if (old != null && old != this) {
+                // another open of the same file; it has to go first
+                old.toDisk(iNumber);
+            }
+            startWriter();
+        }
+    }
+
+    //Saves every changed inode, reading and writing each inode block once
+    public static synchronized void writeBackAll() {
+        while (!dirtyInodes.isEmpty()) {
+            int block = offset(dirtyInodes.firstKey());
+            List<Integer> offsets = new ArrayList<Integer>();
+            List<byte[]> images = new ArrayList<byte[]>();
+            while (!dirtyInodes.isEmpty()
+                    && offset(dirtyInodes.firstKey()) == block) {
+                Map.Entry<Short, Inode> e = dirtyInodes.pollFirstEntry();
+                offsets.add((e.getKey() % inodesPerBlock()) * size());
+                images.add(e.getValue().encode());
+            }
+            int[] at = new int[offsets.size()];
+            for (int i = 0; i < at.length; i++) {
+                at[i] = offsets.get(i);
+            }
+            Journal.update(block, at, images.toArray(new byte[at.length][]));
+        }
+    }
+
+    //Drops every unsaved change, which belongs to a volume being formatted
+    public static synchronized void discardDirty() {
+        dirtyInodes.clear();
+    }
+
+    //Saves changed inodes in the background every WRITE_BACK_INTERVAL ms
+    private static void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(WRITE_BACK_INTERVAL);
+                    } catch (InterruptedException e) {
+                    }
+                    writeBackAll();
+                }
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+    }
 
-        byte [] data = new byte[iNodeSize];
+    //Returns the inode as saved on disk. Indirect and overflow blocks
+    //changed since the last save are written first, so that no commit
+    //holds the inode without them.
+    private synchronized byte[] encode() {
+        byte [] data = new byte[size()];
 
         int offset = 0;
 
-        SysLib.int2bytes(length, data, offset);
-        offset += 4;
+        if (version == 1) {
+            SysLib.int2bytes((int) length, data, offset);
+            offset += 4;
+        } else {
+            SysLib.long2bytes(length, data, offset);
+            offset += 8;
+        }
         SysLib.short2bytes(count, data, offset);
         offset += 2;
         SysLib.short2bytes(flag, data, offset);
         offset += 2;
 
-        for (int i = 0; i < directSize; i++){
-            SysLib.short2bytes(direct[i], data, offset);
-            offset += 2;
+        if (version == 3) {
+            for (int i = 0; i < inodeExtents; i++) {
+                SysLib.int2bytes((i < extents) ? extentStart[i] : -1, data, offset);
+                SysLib.int2bytes((i < extents) ? extentLength[i] : 0, data, offset + 4);
+                offset += 8;
+            }
+            SysLib.int2bytes(extentBlock, data, offset);
+            if (extentsDirty) {
+                writeOverflow();
+            }
+        } else {
+            for (int i = 0; i < directPointers(); i++){
+                setPointer(data, offset, direct[i]);
+                offset += pointerSize();
+            }
+
+            setPointer(data, offset, indirect);
+            if (version == 4) {
+                setPointer(data, offset + 4, doubleIndirect);
+                setPointer(data, offset + 8, tripleIndirect);
+            }
         }
 
-        SysLib.short2bytes(indirect, data, offset);
-        offset += 2;
+        for (Integer block : dirtyIndex) {
+            int[] pointers = indexBlocks.get(block);
+            byte[] blockData = new byte[Disk.blockSize];
+            for (int i = 0; i < pointers.length; i++) {
+                setPointer(blockData, i * pointerSize(), pointers[i]);
+            }
+            Journal.write(block, blockData);
+        }
+        dirtyIndex.clear();
+        return data;
+    }
+
+    //Get the offset of the block
+    private static int offset(short iNumber){
+        return (iNumber / inodesPerBlock()) + 1;
+    }
 
-        int blockNumber = offset(iNumber);
-        byte[] newData = new byte[Disk.blockSize];
-        SysLib.rawread(blockNumber,newData);
+    //Selects the on-disk format of the mounted volume. Format 1 has
+    //32-byte inodes with short block pointers, which limits a volume to
+    //32767 blocks, and a single indirect block. Format 2 has 64-byte inodes
+    //with int pointers and a long file length, but still a single indirect
+    //block. Format 3 has 64-byte inodes too, but maps files with extents
+    //instead of block pointers. Format 4 is format 2 with single, double
+    //and triple indirect blocks.
+    public static void setVersion(int formatVersion) {
+        version = formatVersion;
+    }
 
-        offset = (iNumber % 16) * iNodeSize;
+    public static boolean extentBased() {
+        return version == 3;
+    }
 
-        System.arraycopy(data, 0, newData, offset, iNodeSize);
-        SysLib.rawwrite(blockNumber,newData);
+    public static int size() {
+        return (version == 1) ? iNodeSize : iNodeSizeV2;
+    }
 
-        return 0; //Success
+    public static int inodesPerBlock() {
+        return Disk.blockSize / size();
     }
 
-    //Get the offset of the block
-    private int offset(short iNumber){
-        return (iNumber / 16) + 1;
+    //Number of block pointers an indirect block holds
+    public static int pointersPerBlock() {
+        return Disk.blockSize / pointerSize();
     }
 
-    public short findTargetBlock(int offset) {
-        int block, iBlock; // offset block, indirect offset
-        byte[] data;
-        block = offset / Disk.blockSize;
+    public static int pointerSize() {
+        return (version == 1) ? 2 : 4;
+    }
+
+    //Reads a block pointer; an unused short pointer stays -1
+    public static int getPointer(byte[] data, int offset) {
+        return (version == 1) ? SysLib.bytes2short(data, offset)
+                : SysLib.bytes2int(data, offset);
+    }
+
+    public static void setPointer(byte[] data, int offset, int block) {
+        if (version == 1) {
+            SysLib.short2bytes((short) block, data, offset);
+        } else {
+            SysLib.int2bytes(block, data, offset);
+        }
+    }
+
+    //Number of direct pointers in the inode; format 4 gives one up to make
+    //room for the double and triple indirect pointers
+    public static int directPointers() {
+        return (version == 4) ? directSize - 1 : directSize;
+    }
+
+    //Number of levels of indirect blocks
+    private static int indirectLevels() {
+        return (version == 4) ? 3 : 1;
+    }
+
+    private int indexRoot(int level) {
+        return (level == 1) ? indirect
+                : (level == 2) ? doubleIndirect : tripleIndirect;
+    }
+
+    private void setIndexRoot(int level, int block) {
+        if (level == 1) {
+            indirect = block;
+        } else if (level == 2) {
+            doubleIndirect = block;
+        } else {
+            tripleIndirect = block;
+        }
+    }
+
+    //Returns how many indirect blocks lie between the inode and file block
+    //target (0 for a direct block), setting index[0] to its number among
+    //the blocks mapped at that level; -1 if no file is that large
+    private static int locate(long target, int[] index) {
+        long t = target - directPointers();
+        if (t < 0) {
+            index[0] = (int) target;
+            return 0;
+        }
+        long span = 1;
+        for (int level = 1; level <= indirectLevels(); level++) {
+            span *= pointersPerBlock();
+            if (t < span) {
+                index[0] = (int) t;
+                return level;
+            }
+            t -= span;
+        }
+        return -1;
+    }
+
+    //The pointer to follow in the indirect block depth levels above the
+    //data block, when looking for the index-th block of its level
+    private static int slot(int index, int depth) {
+        for (int d = 1; d < depth; d++) {
+            index /= pointersPerBlock();
+        }
+        return index % pointersPerBlock();
+    }
+
+    public synchronized int findTargetBlock(long offset) {
+        long block = offset / Disk.blockSize;
+
+        if (version == 3) {
+            int[] run = new int[1];
+            return (block <= Integer.MAX_VALUE
+                    && mapBlocks((int) block, run) == 1) ? run[0] : -1;
+        }
 
         // target block is in one of the direct blocks
         // return the block
-        if (block < directSize) {
-            return direct[block];
+        int[] index = new int[1];
+        int level = locate(block, index);
+        if (level == 0) {
+            return direct[index[0]];
         }
-
-        // this block is not registered
-        if (indirect == -1) {
+        if (level < 0) {
             return -1;
         }
 
-        data = new byte[Disk.blockSize];
-        SysLib.rawread(indirect, data);
+        // walk down the indirect blocks; -1 if one is not registered
+        int pointer = indexRoot(level);
+        for (int depth = level; depth >= 1 && pointer != -1; depth--) {
+            pointer = indexPointers(pointer)[slot(index[0], depth)];
+        }
+        return pointer;
+    }
 
-        // get the target block in indirect block and return
-        iBlock = block - directSize;
-        return SysLib.bytes2short(data, iBlock * 2);
+    //Returns the decoded pointers of an indirect block, reading it only
+    //the first time they are needed
+    private int[] indexPointers(int block) {
+        int[] pointers = indexBlocks.get(block);
+        if (pointers == null) {
+            byte[] data = new byte[Disk.blockSize];
+            Journal.read(block, data);
+            pointers = new int[pointersPerBlock()];
+            for (int i = 0; i < pointers.length; i++) {
+                pointers[i] = getPointer(data, i * pointerSize());
+            }
+            indexBlocks.put(block, pointers);
+        }
+        return pointers;
     }
 
-    public byte[] freeIndirectBlock(){
-        if (indirect >= 0) {
-            byte[] data = new byte[512];
-            SysLib.rawread(indirect, data);
-            indirect = -1;
-            return data;
-        } else {
-            return null;
+    //Looks up the disk blocks of blocks.length file blocks from file block
+    //first on, and returns how many of them are mapped. An extent-based
+    //file finds the extent of first once and walks on from there.
+    public synchronized int mapBlocks(int first, int[] blocks) {
+        if (version != 3) {
+            int n = 0;
+            while (n < blocks.length) {
+                int block = findTargetBlock((long) (first + n) * Disk.blockSize);
+                if (block == -1) {
+                    break;
+                }
+                blocks[n++] = block;
+            }
+            return n;
         }
+        loadExtents();
+        int e = 0;
+        int fileBlock = 0;  // the first file block of extent e
+        while (e < extents && fileBlock + extentLength[e] <= first) {
+            fileBlock += extentLength[e++];
+        }
+        int n = 0;
+        for (; e < extents && n < blocks.length; e++) {
+            int from = Math.max(first + n - fileBlock, 0);
+            for (int b = from; b < extentLength[e] && n < blocks.length; b++) {
+                blocks[n++] = extentStart[e] + b;
+            }
+            fileBlock += extentLength[e];
+        }
+        return n;
     }
 
-    public boolean setIndexBlock(short blockNumber){
-        for (int i = 0; i < directSize; i++){
-            if (direct[i] == -1){
-                return false;
+    //Detaches every block of the file and returns them, the indirect or
+    //overflow blocks included, so that they can be freed
+    public synchronized int[] releaseBlocks() {
+        int[] blocks;
+        int n = 0;
+        if (version == 3) {
+            loadExtents();
+            int total = (overflow == null) ? 0 : overflow.length;
+            for (int e = 0; e < extents; e++) {
+                total += extentLength[e];
+            }
+            blocks = new int[total];
+            for (int e = 0; e < extents; e++) {
+                for (int b = 0; b < extentLength[e]; b++) {
+                    blocks[n++] = extentStart[e] + b;
+                }
+            }
+            for (int i = 0; overflow != null && i < overflow.length; i++) {
+                blocks[n++] = overflow[i];
             }
+            extents = 0;
+            extentBlock = -1;
+            overflow = null;
+            extentsDirty = false;
+            return blocks;
         }
-        if (indirect != -1){
-            return false;
+        List<Integer> freed = new ArrayList<Integer>();
+        for (int i = 0; i < directSize; i++) {
+            if (direct[i] != -1) {
+                freed.add(direct[i]);
+                direct[i] = -1;
+            }
+        }
+        for (int level = 1; level <= indirectLevels(); level++) {
+            releaseIndex(indexRoot(level), level, freed);
+            setIndexRoot(level, -1);
+        }
+        indexBlocks.clear();
+        dirtyIndex.clear();
+        blocks = new int[freed.size()];
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = freed.get(i);
+        }
+        return blocks;
+    }
+
+    //Adds the blocks an indirect block maps, depth levels above the data,
+    //and then the block itself to freed
+    private void releaseIndex(int block, int depth, List<Integer> freed) {
+        if (block == -1) {
+            return;
+        }
+        int[] pointers = indexPointers(block);
+        for (int i = 0; i < pointers.length; i++) {
+            if (pointers[i] == -1) {
+                continue;
+            }
+            if (depth == 1) {
+                freed.add(pointers[i]);
+            } else {
+                releaseIndex(pointers[i], depth - 1, freed);
+            }
+        }
+        freed.add(block);
+    }
+
+    //Registers blockNumber as the first indirect block missing on the way
+    //to the file block at byte offset entry (see getIndexNumber)
+    public synchronized boolean setIndexBlock(long entry, int blockNumber){
+        int[] index = new int[1];
+        int level = locate(entry / Disk.blockSize, index);
+        if (level <= 0) {
+            return false; // a direct block, or past the largest file
         }
-        indirect = blockNumber;
-        byte[ ] data = new byte[512];
-        for(int i = 0; i < 256; i++){
-            SysLib.short2bytes((short) -1, data, i * 2);
+        int pointer = indexRoot(level);
+        if (pointer == -1) {
+            setIndexRoot(level, blockNumber);
+        } else {
+            // pointer is depth levels above the data block
+            for (int depth = level; ; depth--) {
+                if (depth == 1) {
+                    return false; // only the data block is missing
+                }
+                int[] pointers = indexPointers(pointer);
+                int i = slot(index[0], depth);
+                if (pointers[i] == -1) {
+                    pointers[i] = blockNumber;
+                    dirtyIndex.add(pointer);
+                    break;
+                }
+                pointer = pointers[i];
+            }
         }
-        SysLib.rawwrite(blockNumber, data);
+        int[] fresh = new int[pointersPerBlock()];
+        Arrays.fill(fresh, -1);
+        indexBlocks.put(blockNumber, fresh);
+        dirtyIndex.add(blockNumber);
         return true;
     }
 
-    int getIndexNumber(int entry, short offset){
-        int target = entry / 512;
+    //Maps the file block at byte offset entry to disk block offset.
+    //Returns 0 on success, -1 if it is already mapped or past the largest
+    //file, -2 if the direct block before it is not mapped, and -3 if an
+    //indirect block on the way to it is missing (see setIndexBlock).
+    synchronized int getIndexNumber(long entry, int offset){
+        int[] index = new int[1];
+        int level = locate(entry / Disk.blockSize, index);
+        int target = index[0];
 
-        if (target < directSize){
+        if (level == 0){
             if(direct[target] >= 0){
                 return -1;
             }
@@ -149,23 +546,130 @@ public class Inode {
             direct[target] = offset;
             return 0;
         }
+        if (level < 0) {
+            return -1;
+        }
 
-        if (indirect < 0){
+        int pointer = indexRoot(level);
+        for (int depth = level; depth > 1 && pointer != -1; depth--) {
+            pointer = indexPointers(pointer)[slot(target, depth)];
+        }
+        if (pointer == -1){
             return -3;
-        } else{
-            byte[] data = new byte[512];
-            SysLib.rawread(indirect,data);
+        }
+        int[] pointers = indexPointers(pointer);
+        if ( pointers[slot(target, 1)] > 0){
+            return -1;
+        }
+        else
+        {
+            // written back with the inode by toDisk
+            pointers[slot(target, 1)] = offset;
+            dirtyIndex.add(pointer);
+        }
+        return 0;
+    }
 
-            int blockSpace = (target - directSize) * 2;
-            if ( SysLib.bytes2short(data, blockSpace) > 0){
-                return -1;
+    //Maps the file block at byte offset entry of an extent-based file to
+    //disk block block, growing the last extent if block follows it.
+    //Returns 0 on success, -1 if the file block is already mapped, -2 if
+    //the blocks before it are not, and -3 if a new overflow block is
+    //needed first (see setExtentBlock).
+    synchronized int addExtentBlock(long entry, int block) {
+        loadExtents();
+        long target = entry / Disk.blockSize;
+        int mapped = 0;
+        for (int e = 0; e < extents; e++) {
+            mapped += extentLength[e];
+        }
+        if (target < mapped) {
+            return -1;
+        }
+        if (target > mapped) {
+            return -2;
+        }
+        int last = extents - 1;
+        if (last >= 0 && extentStart[last] + extentLength[last] == block) {
+            extentLength[last]++;
+        } else {
+            int capacity = inodeExtents
+                    + ((overflow == null) ? 0 : overflow.length) * blockExtents;
+            if (extents == capacity) {
+                return -3;
             }
-            else
-            {
-                SysLib.short2bytes(offset, data, blockSpace);
-                SysLib.rawwrite(indirect, data);
+            if (extents == extentStart.length) {
+                extentStart = Arrays.copyOf(extentStart, extents * 2);
+                extentLength = Arrays.copyOf(extentLength, extents * 2);
             }
+            extentStart[extents] = block;
+            extentLength[extents++] = 1;
+            last++;
+        }
+        // inline extents are saved with the inode itself
+        if (last >= inodeExtents) {
+            extentsDirty = true;
         }
         return 0;
     }
+
+    //Adds an overflow block for blockExtents more extents to the chain
+    public synchronized boolean setExtentBlock(int blockNumber) {
+        if (version != 3 || blockNumber < 0) {
+            return false;
+        }
+        loadExtents();
+        if (overflow == null) {
+            overflow = new int[0];
+            extentBlock = blockNumber;
+        }
+        overflow = Arrays.copyOf(overflow, overflow.length + 1);
+        overflow[overflow.length - 1] = blockNumber;
+        extentsDirty = true;
+        return true;
+    }
+
+    //Reads the overflow chain the first time the extents past the inode
+    //are needed
+    private void loadExtents() {
+        if (overflow != null || extentBlock == -1) {
+            return;
+        }
+        overflow = new int[0];
+        byte[] data = new byte[Disk.blockSize];
+        for (int next = extentBlock; next != -1; ) {
+            overflow = Arrays.copyOf(overflow, overflow.length + 1);
+            overflow[overflow.length - 1] = next;
+            Journal.read(next, data);
+            for (int i = 0; i < blockExtents; i++) {
+                int start = SysLib.bytes2int(data, i * 8);
+                if (start == -1) {
+                    break;
+                }
+                if (extents == extentStart.length) {
+                    extentStart = Arrays.copyOf(extentStart, extents * 2);
+                    extentLength = Arrays.copyOf(extentLength, extents * 2);
+                }
+                extentStart[extents] = start;
+                extentLength[extents++] = SysLib.bytes2int(data, i * 8 + 4);
+            }
+            next = SysLib.bytes2int(data, blockExtents * 8);
+        }
+    }
+
+    //Writes the overflow chain back. Each block holds blockExtents extents
+    //and then the number of the next block, or -1.
+    private void writeOverflow() {
+        for (int k = 0; k < overflow.length; k++) {
+            byte[] data = new byte[Disk.blockSize];
+            for (int i = 0; i < blockExtents; i++) {
+                int e = inodeExtents + k * blockExtents + i;
+                SysLib.int2bytes((e < extents) ? extentStart[e] : -1, data, i * 8);
+                SysLib.int2bytes((e < extents) ? extentLength[e] : 0, data, i * 8 + 4);
+            }
+            SysLib.int2bytes((k + 1 < overflow.length) ? overflow[k + 1] : -1,
+                    data, blockExtents * 8);
+            Journal.write(overflow[k], data);
+        }
+        extentsDirty = false;
+    }
 }
@@ -0,0 +1,63 @@
+import java.util.*;
+
+/**
+ * CSS 430 Final Project
+ *
+ * InodeTable.java
+ *
+ * The in-memory inodes of the file system, one per file, shared by every
+ * FileTableEntry open on that file so that they all see the same length
+ * and block map. An inode stays cached after its last entry is closed,
+ * until more than capacity inodes are cached; then the least recently
+ * used ones that no entry refers to are dropped. Inodes in use are never
+ * dropped, so the table may grow past capacity while many files are open.
+ */
+public class InodeTable {
+    public static final int DEFAULT_CAPACITY = 64; // inodes
+
+    private final int capacity;
+    // in access order, least recently used first
+    private LinkedHashMap<Short, Inode> inodes =
+        new LinkedHashMap<Short, Inode>(16, 0.75f, true);
+
+    public InodeTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public InodeTable(int capacity) {
+        this.capacity = capacity;
+    }
+
+    //Returns the inode of a file, reading it from the disk if it is not
+    //cached
+    public synchronized Inode get(short iNumber) {
+        Inode inode = inodes.get(iNumber);
+        if (inode == null) {
+            inode = new Inode(iNumber);
+            inodes.put(iNumber, inode);
+            trim();
+        }
+        return inode;
+    }
+
+    //Returns a new, empty inode for a file being created, replacing the
+    //cached inode of a deleted file that had the same number
+    public synchronized Inode create(short iNumber) {
+        Inode inode = new Inode();
+        inodes.put(iNumber, inode);
+        trim();
+        return inode;
+    }
+
+    //Drops unused inodes, least recently used first, until at most
+    //capacity are cached. An unused inode needs no saving: FileTable.ffree
+    //saved it when its last entry was freed.
+    private void trim() {
+        Iterator<Inode> it = inodes.values().iterator();
+        while (inodes.size() > capacity && it.hasNext()) {
+            if (it.next().count == 0) {
+                it.remove();
+            }
+        }
+    }
+}
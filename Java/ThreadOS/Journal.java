@@ -0,0 +1,292 @@
+import java.util.*;
+
+/**
+ * CSS 430 Final Project
+ *
+ * Journal.java
+ *
+ * Write-ahead journal for file system metadata: the superblock, inodes,
+ * indirect blocks, free list links and the root directory. Updates are
+ * collected in memory, appended to a log at the end of the volume in
+ * groups, and only written to their home blocks at a checkpoint. Updates
+ * that were committed but never checkpointed are replayed at mount.
+ *
+ * The log header block holds a magic number, the number of log slots in
+ * use, and the home block of each slot. The slots follow the header. The
+ * log itself bypasses the buffer cache; home blocks go through it.
+ *
+ * The disk reaches the DISK file only on SYNC, so the journal writes its
+ * own blocks through with rawsync: a commit's slots before the header
+ * that counts them, and a checkpoint's home blocks before the header
+ * that empties the log. A crash then loses at most the last commit.
+ */
+public class Journal {
+    public static final int JOURNAL_BLOCKS = 32;    // header + log slots
+    private static final int MAGIC = 0x4a524e4c;     // "JRNL"
+    private static final int COMMIT_INTERVAL = 100;  // ms between commits
+
+    private static boolean enabled = false; // false: write straight through
+    private static int header;              // block number of the header
+    private static int[] homes = new int[JOURNAL_BLOCKS - 1]; // per slot
+    private static int used = 0;            // log slots in use
+    private static Map<Integer, byte[]> pending = new LinkedHashMap<Integer, byte[]>();
+    private static Map<Integer, byte[]> committed = new HashMap<Integer, byte[]>();
+    private static Thread committer = null;
+
+    //Returns the first block of the journal region, which is where the
+    //data blocks of a volume with this many blocks end
+    public static int firstBlock(int totalBlocks) {
+        return (totalBlocks > 2 * JOURNAL_BLOCKS) ?
+            totalBlocks - JOURNAL_BLOCKS : totalBlocks;
+    }
+
+    //Opens the journal of a volume and replays every committed update.
+    //A volume formatted without a journal is written straight through.
+    public static synchronized void mount(int totalBlocks) {
+        header = firstBlock(totalBlocks);
+        pending.clear();
+        committed.clear();
+        used = 0;
+        enabled = false;
+        if (header == totalBlocks) {
+            return;
+        }
+        byte[] block = new byte[Disk.blockSize];
+        SysLib.rawread(header, block);
+        int count = SysLib.bytes2int(block, 4);
+        if (SysLib.bytes2int(block, 0) != MAGIC || count < 0
+                || count > homes.length) {
+            return;
+        }
+        enabled = true;
+        if (count > 0) {
+            replay(block, count);
+        }
+        startCommitter();
+    }
+
+    //Starts an empty journal for a freshly formatted volume
+    public static synchronized void format(int totalBlocks) {
+        header = firstBlock(totalBlocks);
+        pending.clear();
+        committed.clear();
+        used = 0;
+        enabled = (header < totalBlocks);
+        if (enabled) {
+            writeHeader();
+            startCommitter();
+        }
+    }
+
+    //Reads the latest version of a metadata block
+    public static synchronized void read(int blockId, byte[] buffer) {
+        byte[] image = enabled ? pending.get(blockId) : null;
+        if (image == null && enabled) {
+            image = committed.get(blockId);
+        }
+        if (image != null) {
+            System.arraycopy(image, 0, buffer, 0, Disk.blockSize);
+        } else {
+            SysLib.cread(blockId, buffer);
+        }
+    }
+
+    //Logs a new version of a whole metadata block
+    public static synchronized void write(int blockId, byte[] buffer) {
+        if (!enabled) {
+            SysLib.cwrite(blockId, buffer);
+            return;
+        }
+        System.arraycopy(buffer, 0, pendingImage(blockId, false), 0,
+                Disk.blockSize);
+    }
+
+    //Logs a change of data.length bytes at offset within a metadata block.
+    //The block is read and patched under one lock, so threads updating
+    //different inodes of the same block do not overwrite each other.
+    public static synchronized void update(int blockId, int offset, byte[] data) {
+        update(blockId, new int[] { offset }, new byte[][] { data });
+    }
+
+    //Logs several changes to one metadata block at once: data[i] goes at
+    //offsets[i]. The block is read and written only once for all of them.
+    public static synchronized void update(int blockId, int[] offsets,
+            byte[][] data) {
+        byte[] block;
+        if (enabled) {
+            block = pendingImage(blockId, true);
+        } else {
+            block = new byte[Disk.blockSize];
+            SysLib.cread(blockId, block);
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            System.arraycopy(data[i], 0, block, offsets[i], data[i].length);
+        }
+        if (!enabled) {
+            SysLib.cwrite(blockId, block);
+        }
+    }
+
+    //Drops every logged version of a block that is about to hold file
+    //data, so that a later checkpoint or replay cannot overwrite it
+    public static synchronized void forget(int blockId) {
+        if (!enabled) {
+            return;
+        }
+        pending.remove(blockId);
+        if (committed.remove(blockId) != null) {
+            for (int i = 0; i < used; i++) {
+                if (homes[i] == blockId) {
+                    homes[i] = -1;
+                }
+            }
+            writeHeader();
+        }
+    }
+
+    //Group commit: appends every pending update to the log with one
+    //vectored write, then writes the header that makes them durable
+    public static synchronized void commit() {
+        if (!enabled || pending.isEmpty()) {
+            return;
+        }
+        if (used + pending.size() > homes.length) {
+            checkpoint();
+            if (used + pending.size() > homes.length) {
+                return; // the checkpoint failed; the log is still full
+            }
+        }
+        int n = pending.size();
+        int[] slots = new int[n];
+        byte[][] images = new byte[n][];
+        int i = 0;
+        for (Map.Entry<Integer, byte[]> e : pending.entrySet()) {
+            homes[used + i] = e.getKey();
+            slots[i] = header + 1 + used + i;
+            images[i++] = e.getValue();
+        }
+        SysLib.rawwritev(slots, images);
+        SysLib.rawsync(slots);
+        used += n;
+        writeHeader();
+        committed.putAll(pending);
+        pending = new LinkedHashMap<Integer, byte[]>();
+    }
+
+    //Commits pending updates and writes everything home, leaving the log
+    //empty
+    public static synchronized void sync() {
+        commit();
+        checkpoint();
+    }
+
+    //Writes committed updates to their home blocks and empties the log.
+    //The home blocks go through the buffer cache, which is written back
+    //before the log is emptied.
+    private static void checkpoint() {
+        if (!enabled || used == 0) {
+            return;
+        }
+        if (!committed.isEmpty()) {
+            int[] blocks = new int[committed.size()];
+            byte[][] images = new byte[blocks.length][];
+            int i = 0;
+            for (Map.Entry<Integer, byte[]> e : committed.entrySet()) {
+                blocks[i] = e.getKey();
+                images[i++] = e.getValue();
+            }
+            // the log stays until the home blocks are surely written
+            if (SysLib.cwritev(blocks, images) == Kernel.ERROR
+                    || SysLib.csync() == Kernel.ERROR) {
+                return;
+            }
+            SysLib.rawsync(blocks);
+            committed.clear();
+        }
+        used = 0;
+        writeHeader();
+    }
+
+    //Returns the pending image of a block, starting a new one if needed.
+    //A new image starts from the current contents only if it will be
+    //patched rather than overwritten.
+    private static byte[] pendingImage(int blockId, boolean partial) {
+        byte[] image = pending.get(blockId);
+        if (image == null) {
+            if (used + pending.size() >= homes.length) {
+                commit();
+            }
+            image = new byte[Disk.blockSize];
+            if (partial) {
+                read(blockId, image);
+            }
+            pending.put(blockId, image);
+        }
+        return image;
+    }
+
+    //Copies committed updates home after a crash; later slots win
+    private static void replay(byte[] headerBlock, int count) {
+        int[] slots = new int[count];
+        byte[][] images = new byte[count][Disk.blockSize];
+        for (int i = 0; i < count; i++) {
+            slots[i] = header + 1 + i;
+        }
+        SysLib.rawreadv(slots, images);
+
+        Map<Integer, byte[]> latest = new LinkedHashMap<Integer, byte[]>();
+        for (int i = 0; i < count; i++) {
+            int home = SysLib.bytes2int(headerBlock, 8 + i * 4);
+            if (home >= 0 && home < header) {
+                latest.put(home, images[i]);
+            }
+        }
+        if (!latest.isEmpty()) {
+            int[] blocks = new int[latest.size()];
+            byte[][] data = new byte[blocks.length][];
+            int i = 0;
+            for (Map.Entry<Integer, byte[]> e : latest.entrySet()) {
+                blocks[i] = e.getKey();
+                data[i++] = e.getValue();
+            }
+            SysLib.rawwritev(blocks, data);
+            SysLib.rawsync(blocks);
+        }
+        SysLib.cerr("threadOS: replayed " + latest.size()
+                + " journaled blocks\n");
+        used = 0;
+        writeHeader();
+    }
+
+    private static void writeHeader() {
+        byte[] block = new byte[Disk.blockSize];
+        SysLib.int2bytes(MAGIC, block, 0);
+        SysLib.int2bytes(used, block, 4);
+        for (int i = 0; i < used; i++) {
+            SysLib.int2bytes(homes[i], block, 8 + i * 4);
+        }
+        SysLib.rawwrite(header, block);
+        SysLib.rawsync(new int[] { header });
+    }
+
+    //Commits pending updates in the background, so that updates from
+    //many threads reach the log together
+    private static void startCommitter() {
+        if (committer != null) {
+            return;
+        }
+        committer = new Thread(new Runnable() {
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(COMMIT_INTERVAL);
+                    } catch (InterruptedException e) {
+                    }
+                    commit();
+                }
+            }
+        });
+        committer.setDaemon(true);
+        committer.start();
+    }
+}
@@ -36,6 +36,21 @@ public class Kernel
    public final static int FORMAT  = 18; // SysLib.format( int files )
    public final static int DELETE  = 19; // SysLib.delete( String fileName )
 
+   // Vectored raw I/O
+   public final static int RAWREADV  = 20; // SysLib.rawreadv(int blks[],
+   //                byte b[][])
+   public final static int RAWWRITEV = 21; // SysLib.rawwritev(int blks[],
+   //                byte b[][])
+   public final static int CREADV    = 22; // SysLib.creadv(int blks[],
+   //                byte b[][])
+   public final static int CWRITEV   = 23; // SysLib.cwritev(int blks[],
+   //                byte b[][])
+   public final static int CRESIZE   = 24; // SysLib.cresize(int blocks)
+   public final static int CSTATS    = 25; // SysLib.cstats(long stats[])
+   public final static int LSEEK     = 26; // SysLib.lseek(int fd, long offset,
+   //              int whence)
+   public final static int RAWSYNC   = 27; // SysLib.rawsync(int blks[])
+
    // Predefined file descriptors
    public final static int STDIN  = 0;
    public final static int STDOUT = 1;
@@ -47,18 +62,25 @@ public class Kernel
 
    // System thread references
    private static Scheduler scheduler;
-   private static Disk disk;
+   private static StripedDisk disk;
    private static Cache cache;
 
    // Synchronized Queues
    private static SyncQueue waitQueue;  // for threads to wait for their child
-   private static SyncQueue ioQueue;    // I/O queue
 
    // File System
    private static FileSystem fs;
 
-   private final static int COND_DISK_REQ = 1; // wait condition 
-   private final static int COND_DISK_FIN = 2; // wait condition
+   // print the disk statistics on every SYNC ("-diskstats" at boot)
+   private static boolean diskStatistics = false;
+
+   // Boot options, printed when one of them is wrong
+   private final static String USAGE =
+      "usage: java Boot [-disk rotational|ssd|ram] [-stripes n] [-blocks n]\n"
+      + "                 [-diskstats] [-cache size[K|M|G]]"
+      + " [-policy clock|2q|arc]\n"
+      + "                 [-cachetrace file] [-flushage ms]"
+      + " [-fsversion 1|2|3|4]";
 
    // Standard input
    private static BufferedReader input
@@ -67,6 +89,7 @@ public class Kernel
    // The heart of Kernel
    public static int interrupt( int irq, int cmd, int param, Object args ) {
       TCB myTcb;
+      DiskRequest request;
       switch( irq ) {
          case INTERRUPT_SOFTWARE: // System calls
             switch( cmd ) { 
@@ -75,19 +98,55 @@ public class Kernel
                   scheduler = new Scheduler( ); 
                   scheduler.start( );
 
-                  // instantiate and start a disk
-                  disk = new Disk( 1000 );
+                  // instantiate and start the disks with the device model
+                  // chosen by "-disk rotational|ssd|ram", striped over the
+                  // number of disks given by "-stripes n". The volume has
+                  // "-blocks n" blocks in all (1000 by default).
+                  String bootArgs[] = ( String[] )args;
+                  int totalBlocks = ( int )getBootNumber( bootArgs, "-blocks",
+                                                          1000, 1,
+                                                          Integer.MAX_VALUE );
+                  disk = new StripedDisk( totalBlocks, ( int )getBootNumber(
+                        bootArgs, "-stripes", 1, 1, totalBlocks ),
+                        getDiskModel( getBootOption( bootArgs, "-disk",
+                                                     "rotational" ) ) );
                   disk.start( );
+                  diskStatistics = hasBootFlag( bootArgs, "-diskstats" );
+
+                  // instantiate a cache memory of "-cache size" bytes
+                  // (10 blocks by default; a K, M or G suffix may follow
+                  // the size) with the replacement policy chosen by
+                  // "-policy clock|2q|arc"
+                  cache = new Cache( Disk.blockSize, getCacheBlocks(
+                        getBootOption( bootArgs, "-cache",
+                                       "" + 10 * Disk.blockSize ) ),
+                        getBootOption( bootArgs, "-policy", "clock" ),
+                        totalBlocks );
 
-                  // instantiate a cache memory
-                  cache = new Cache( disk.blockSize, 10 );
+                  // record the blocks asked of the cache for CacheSim if
+                  // "-cachetrace file" is given
+                  String tracePath = getBootOption( bootArgs, "-cachetrace",
+                                                    null );
+                  if ( tracePath != null )
+                     cache.startTrace( tracePath );
+
+                  // write dirty cache blocks back in the background once
+                  // they are "-flushage ms" old (3 seconds by default)
+                  cache.startFlusher( getBootNumber( bootArgs, "-flushage",
+                                                     3000, 0, Long.MAX_VALUE ) );
 
                   // instantiate synchronized queues
-                  ioQueue = new SyncQueue( );
                   waitQueue = new SyncQueue( scheduler.getMaxThreads( ) );
 
-                  // instantiate a file system;
-                  fs = new FileSystem( 1000 );
+                  // instantiate a file system; an unformatted volume gets
+                  // the on-disk format given by "-fsversion 1|2|3|4" (3
+                  // maps files with extents, 4 adds double and triple
+                  // indirect blocks), though volumes over 32767 blocks
+                  // cannot use format 1. Without the option, a blank
+                  // volume gets format 1 and a formatted one keeps its own
+                  // format when SysLib.format formats it again.
+                  fs = new FileSystem( totalBlocks, ( int )getBootNumber(
+                        bootArgs, "-fsversion", 0, 1, 4 ), cache );
 
                   return OK;
                case EXEC:
@@ -116,24 +175,45 @@ public class Kernel
                   scheduler.sleepThread( param ); // param = milliseconds
                   return OK;
                case RAWREAD: // read a block of data from disk
-                  while ( disk.read( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  if ( ( request = disk.read( param, ( byte[] )args ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
                   return OK;
                case RAWWRITE: // write a block of data to disk
-                  while ( disk.write( param, ( byte[] )args ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
+                  if ( ( request = disk.write( param, ( byte[] )args ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
+                  return OK;
+               case RAWREADV: // read several blocks in one disk request
+                  Object[] readArgs = ( Object[] )args;
+                  if ( ( request = disk.readv( ( int[] )readArgs[0],
+                                 ( byte[][] )readArgs[1] ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
+                  return OK;
+               case RAWWRITEV: // write several blocks in one disk request
+                  Object[] writeArgs = ( Object[] )args;
+                  if ( ( request = disk.writev( ( int[] )writeArgs[0],
+                                 ( byte[][] )writeArgs[1] ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
+                  return OK;
+               case RAWSYNC:  // write some disk blocks to the real file
+                  if ( ( request = disk.syncv( ( int[] )args ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
                   return OK;
                case SYNC:     // synchronize disk data to a real file
                   fs.sync( );
-                  while ( disk.sync( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_REQ );
-                  while ( disk.testAndResetReady( ) == false )
-                     ioQueue.enqueueAndSleep( COND_DISK_FIN );
-                  return OK;
+                  // blocks the cache could not write back are left out,
+                  // but the rest still reach the file
+                  boolean cached = cache.sync( );
+                  if ( ( request = disk.sync( ) ) == null )
+                     return ERROR;
+                  request.waitForCompletion( );
+                  if ( diskStatistics )
+                     SysLib.cerr( disk.getStatistics( ) );
+                  return cached ? OK : ERROR;
                case READ:
                   switch ( param ) {
                      case STDIN:
@@ -187,12 +267,23 @@ public class Kernel
                   return cache.read( param, ( byte[] )args ) ? OK : ERROR;
                case CWRITE:  // to be implemented in assignment 4
                   return cache.write( param, ( byte[] )args ) ? OK : ERROR;
-               case CSYNC:   // to be implemented in assignment 4
-                  cache.sync( );
-                  return OK;
-               case CFLUSH:  // to be implemented in assignment 4
-                  cache.flush( );
-                  return OK;
+               case CREADV:  // read several blocks through the cache
+                  Object[] creadArgs = ( Object[] )args;
+                  return cache.readv( ( int[] )creadArgs[0],
+                                      ( byte[][] )creadArgs[1] ) ? OK : ERROR;
+               case CWRITEV: // write several blocks through the cache
+                  Object[] cwriteArgs = ( Object[] )args;
+                  return cache.writev( ( int[] )cwriteArgs[0],
+                                       ( byte[][] )cwriteArgs[1] ) ? OK : ERROR;
+               case CSYNC:   // write dirty cache blocks back to the disk;
+                             // SYNC also saves the DISK file
+                  return cache.sync( ) ? OK : ERROR;
+               case CFLUSH:  // write back and empty the cache
+                  return cache.flush( ) ? OK : ERROR;
+               case CRESIZE: // change the number of cache blocks
+                  return cache.resize( param ) ? OK : ERROR;
+               case CSTATS:  // copy the cache counters, see Cache.getStats
+                  return cache.getStats( ( long[] )args ) ? OK : ERROR;
                case OPEN:    // to be implemented in project
                   if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
                      String[] s = ( String[] )args;
@@ -221,9 +312,22 @@ public class Kernel
                      int[] seekArgs = ( int[] )args;
                      FileTableEntry ftEnt = myTcb.getFtEnt( param );
                      if ( ftEnt != null )
-                        return fs.seek( ftEnt, seekArgs[0], seekArgs[1] );
+                        return ( int )Math.min( fs.seek( ftEnt, seekArgs[0],
+                                                         seekArgs[1] ),
+                                                Integer.MAX_VALUE );
                   } 
                   return ERROR;
+               case LSEEK:   // seek with a long offset; the new position
+                             // is returned in args[0]
+                  if ( ( myTcb = scheduler.getMyTcb( ) ) != null ) {
+                     long[] lseekArgs = ( long[] )args;
+                     FileTableEntry ftEnt = myTcb.getFtEnt( param );
+                     if ( ftEnt != null &&
+                          ( lseekArgs[0] = fs.seek( ftEnt, lseekArgs[0],
+                                                    ( int )lseekArgs[1] ) ) >= 0 )
+                        return OK;
+                  }
+                  return ERROR;
                case FORMAT:  // to be implemented in project
                   return ( fs.format( param ) == true ) ? OK : ERROR;
                case DELETE:  // to be implemented in project
@@ -231,11 +335,8 @@ public class Kernel
             }
             return ERROR;
          case INTERRUPT_DISK: // Disk interrupts
-            // wake up the thread waiting for a service completion
-            ioQueue.dequeueAndWakeup( COND_DISK_FIN );
-
-            // wake up the thread waiting for a request acceptance
-            ioQueue.dequeueAndWakeup( COND_DISK_REQ );
+            // wake up only the thread waiting for this service completion
+            ( ( DiskRequest )args ).complete( );
 
             return OK;
          case INTERRUPT_IO:   // other I/O interrupts (not implemented)
@@ -244,6 +345,95 @@ public class Kernel
       return OK;
    }
 
+   // Returns the value following name on the Boot command line, or
+   // defaultValue if it was not given
+   private static String getBootOption( String args[], String name,
+                                        String defaultValue ) {
+      if ( args != null )
+         for ( int i = 0; i < args.length - 1; i++ )
+            if ( args[i].equals( name ) )
+               return args[i + 1];
+      return defaultValue;
+   }
+
+   // Returns the value of a numeric boot option, or defaultValue if it
+   // was not given, or if it is not a number from min to max
+   private static long getBootNumber( String args[], String name,
+                                      long defaultValue, long min, long max ) {
+      String value = getBootOption( args, name, null );
+      if ( value == null )
+         return defaultValue;
+      try {
+         long number = Long.parseLong( value );
+         if ( number >= min && number <= max )
+            return number;
+      } catch ( NumberFormatException e ) {
+      }
+      System.err.println( "threadOS: " + name + " " + value
+                          + " is not a number from " + min + " to " + max
+                          + ( ( defaultValue < min ) ? ", ignored"
+                              : ", using " + defaultValue ) );
+      System.err.println( USAGE );
+      return defaultValue;
+   }
+
+   // Returns whether a boot option without a value, such as "-diskstats",
+   // was given
+   private static boolean hasBootFlag( String args[], String name ) {
+      if ( args != null )
+         for ( int i = 0; i < args.length; i++ )
+            if ( args[i].equals( name ) )
+               return true;
+      return false;
+   }
+
+   // Returns the number of cache blocks that fit in a size given in bytes,
+   // optionally followed by K, M or G; 10 blocks if the size is not valid
+   private static int getCacheBlocks( String size ) {
+      String given = size;
+      long unit = 1;
+      char suffix = Character.toUpperCase( size.charAt( size.length( ) - 1 ) );
+      if ( suffix == 'K' || suffix == 'M' || suffix == 'G' ) {
+         unit = ( suffix == 'K' ) ? 1L << 10 :
+                ( suffix == 'M' ) ? 1L << 20 : 1L << 30;
+         size = size.substring( 0, size.length( ) - 1 );
+      }
+      long blocks;
+      try {
+         blocks = Long.parseLong( size );
+      } catch ( NumberFormatException e ) {
+         blocks = -1;
+      }
+      if ( blocks < 0 ) {
+         System.err.println( "threadOS: -cache " + given
+                             + " is not a size, using 10 blocks" );
+         System.err.println( USAGE );
+         return 10;
+      }
+      blocks = ( blocks > Long.MAX_VALUE / unit ) ? Long.MAX_VALUE
+         : blocks * unit / Disk.blockSize;
+      if ( blocks > Cache.maxBlocks( Disk.blockSize ) ) {
+         System.err.println( "threadOS: cache size " + given
+                             + " too large, using the largest possible" );
+         blocks = Cache.maxBlocks( Disk.blockSize );
+      }
+      return ( int )Math.max( 1, blocks );
+   }
+
+   // Returns the latency model of a disk device by its name
+   private static DiskModel getDiskModel( String name ) {
+      if ( name.equals( "ssd" ) )
+         return new SsdDiskModel( );
+      if ( name.equals( "ram" ) )
+         return new RamDiskModel( );
+      if ( name.equals( "rotational" ) == false ) {
+         System.err.println( "threadOS: unknown disk model " + name
+                             + ", using rotational" );
+         System.err.println( USAGE );
+      }
+      return new RotationalDiskModel( );
+   }
+
    // Spawning a new thread
    private static int sysExec( String args[] ) {
       String thrName = args[0]; // args[0] has a thread name
@@ -0,0 +1,12 @@
+// A memory-backed device: blocks move at no modelled cost, which leaves
+// the file system and cache as the only bottleneck.
+public class RamDiskModel implements DiskModel {
+   public long serviceTime( int command, int fromBlock, int toBlock,
+                            boolean contiguous, int queueDepth ) {
+      return 0;
+   }
+
+   public String toString( ) {
+      return "ram";
+   }
+}
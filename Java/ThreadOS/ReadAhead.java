@@ -0,0 +1,52 @@
+import java.util.ArrayDeque;
+
+/**
+ * CSS 430 Final Project
+ *
+ * ReadAhead.java
+ *
+ * Asynchronous reads of the file blocks just past sequential streams.
+ * FileSystem.read queues them here and a single worker thread reads each
+ * one through the buffer cache, so that the reader later finds the blocks
+ * cached. The data itself is not kept: the cache stays the only copy, and
+ * writes and truncations never leave a stale prefetched block behind.
+ */
+public class ReadAhead implements Runnable {
+    private static final int MAX_PENDING = 16; // queued reads, more are dropped
+
+    private final ArrayDeque<int[]> pending = new ArrayDeque<int[]>();
+    private Thread worker = null;
+
+    //Queues a read of the given disk blocks. If the worker is too far
+    //behind the request is dropped, and the reader fetches the blocks
+    //itself.
+    public synchronized void request(int[] blocks) {
+        if (pending.size() >= MAX_PENDING) {
+            return;
+        }
+        pending.add(blocks);
+        if (worker == null) {
+            worker = new Thread(this);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        notify();
+    }
+
+    private synchronized int[] next() {
+        while (pending.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        return pending.poll();
+    }
+
+    public void run() {
+        while (true) {
+            int[] blocks = next();
+            SysLib.creadv(blocks, new byte[blocks.length][Disk.blockSize]);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+// A single-arm rotational disk: every request pays a fixed transfer time
+// plus a delay for each track the arm crosses. Queue depth does not help.
+public class RotationalDiskModel implements DiskModel {
+   private final int transferTime = 20000;  // microseconds
+   private final int delayPerTrack = 1000;  // microseconds
+
+   public long serviceTime( int command, int fromBlock, int toBlock,
+                            boolean contiguous, int queueDepth ) {
+      int tracks = Math.abs( toBlock / Disk.trackSize
+                             - fromBlock / Disk.trackSize );
+      // the next block of a contiguous run is already under the head
+      return ( contiguous ? 0 : transferTime ) + delayPerTrack * tracks;
+   }
+
+   public String toString( ) {
+      return "rotational";
+   }
+}
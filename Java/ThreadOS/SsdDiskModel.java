@@ -0,0 +1,33 @@
+// A flash device with several independent channels. There is no seek, so
+// block distance does not matter. The device works on up to one request
+// per channel at a time, so with a deeper queue each request takes a
+// smaller share of the time. Past the channel count, extra queued
+// requests only add controller overhead.
+public class SsdDiskModel implements DiskModel {
+   private final int channels;
+   private final int readLatency = 100;     // microseconds per random block
+   private final int writeLatency = 300;    // microseconds per random block
+   private final int streamLatency = 10;    // microseconds per next block
+   private final int queueOverhead = 2;     // microseconds per extra request
+
+   public SsdDiskModel( ) {
+      this( 4 );
+   }
+
+   public SsdDiskModel( int channels ) {
+      this.channels = ( channels > 0 ) ? channels : 1;
+   }
+
+   public long serviceTime( int command, int fromBlock, int toBlock,
+                            boolean contiguous, int queueDepth ) {
+      long latency = contiguous ? streamLatency
+         : ( command == Disk.WRITE ) ? writeLatency : readLatency;
+      int inFlight = Math.min( queueDepth + 1, channels );
+      return latency / inFlight
+         + queueOverhead * Math.max( queueDepth + 1 - channels, 0 );
+   }
+
+   public String toString( ) {
+      return "ssd x" + channels;
+   }
+}
@@ -0,0 +1,96 @@
+// A striped (RAID-0) volume over several Disks, each with its own thread
+// and image file. Logical block b is block b / stripes of disk
+// b % stripes, so a request that spans several disks is served by all of
+// them in parallel. With a single stripe this is just the plain "DISK".
+public class StripedDisk {
+   private Disk disks[];
+   private int totalBlocks;
+
+   public StripedDisk( int totalBlocks, int stripes, DiskModel model ) {
+      this.totalBlocks = ( totalBlocks > 0 ) ? totalBlocks : 1;
+      disks = new Disk[( stripes > 0 ) ? stripes : 1];
+      for ( int i = 0; i < disks.length; i++ ) {
+         // disk i holds every logical block congruent to i
+         int blocks = ( this.totalBlocks - i + disks.length - 1 ) / disks.length;
+         String image = ( disks.length == 1 ) ? "DISK" : "DISK" + i;
+         disks[i] = new Disk( blocks, model, image );
+      }
+   }
+
+   public void start( ) {
+      for ( int i = 0; i < disks.length; i++ )
+         disks[i].start( );
+   }
+
+   public DiskRequest read( int blockId, byte buffer[] ) {
+      return readv( new int[] { blockId }, new byte[][] { buffer } );
+   }
+
+   public DiskRequest write( int blockId, byte buffer[] ) {
+      return writev( new int[] { blockId }, new byte[][] { buffer } );
+   }
+
+   public synchronized DiskRequest readv( int blockIds[], byte buffers[][] ) {
+      return submit( Disk.READ, blockIds, buffers );
+   }
+
+   public synchronized DiskRequest writev( int blockIds[], byte buffers[][] ) {
+      return submit( Disk.WRITE, blockIds, buffers );
+   }
+
+   // reports the requests each disk has served since boot
+   public String getStatistics( ) {
+      String statistics = "";
+      for ( int i = 0; i < disks.length; i++ )
+         statistics += disks[i].getStatistics( );
+      return statistics;
+   }
+
+   public synchronized DiskRequest sync( ) {
+      DiskRequest parts[] = new DiskRequest[disks.length];
+      for ( int i = 0; i < disks.length; i++ )
+         parts[i] = disks[i].sync( );
+      return new DiskRequest( Disk.SYNC, parts );
+   }
+
+   // writes only the given blocks back to the DISK files
+   public synchronized DiskRequest syncv( int blockIds[] ) {
+      return submit( Disk.SYNC, blockIds, new byte[blockIds.length][] );
+   }
+
+   // splits a request into one part per disk involved
+   private DiskRequest submit( int command, int blockIds[], byte buffers[][] ) {
+      if ( blockIds.length == 0 || blockIds.length != buffers.length )
+         return null;
+      int counts[] = new int[disks.length];
+      for ( int i = 0; i < blockIds.length; i++ ) {
+         if ( blockIds[i] < 0 || blockIds[i] >= totalBlocks ) {
+            SysLib.cerr( "threadOS: a wrong blockId for "
+                         + ( command == Disk.READ ? "read\n" :
+                             command == Disk.WRITE ? "write\n" : "sync\n" ) );
+            return null;
+         }
+         counts[blockIds[i] % disks.length]++;
+      }
+
+      DiskRequest parts[] = new DiskRequest[disks.length];
+      for ( int i = 0; i < disks.length; i++ ) {
+         if ( counts[i] == 0 )
+            continue;
+         int localIds[] = new int[counts[i]];
+         byte localBuffers[][] = new byte[counts[i]][];
+         for ( int j = 0, k = 0; j < blockIds.length; j++ ) {
+            if ( blockIds[j] % disks.length == i ) {
+               localIds[k] = blockIds[j] / disks.length;
+               localBuffers[k++] = buffers[j];
+            }
+         }
+         parts[i] = ( command == Disk.READ )
+            ? disks[i].readv( localIds, localBuffers )
+            : ( command == Disk.WRITE )
+            ? disks[i].writev( localIds, localBuffers )
+            : disks[i].syncv( localIds );
+      }
+      return new DiskRequest( command, parts );
+   }
+}
@@ -1,15 +1,120 @@
+import java.util.*;
+
 /**
  * Raghu Tirumala
  * CSS 430 Final Project
  *
  * Superblock.java
+ *
+ * Free blocks are tracked by a bitmap, one bit per block of the volume,
+ * kept in the blocks just before the journal and cached in memory, so
+ * allocating and freeing cost no disk I/O. Changed bitmap blocks are saved
+ * with the superblock by sync. Volumes formatted before there was a
+ * bitmap keep their linked free list, whose head is freeList.
+ *
+ * The volume is divided into allocation groups of GROUP_BLOCKS blocks,
+ * like the cylinder groups of the Berkeley fast file system. Each group
+ * has its own lock over its part of the bitmap. A new block goes near a
+ * goal block, normally the one after the previous block of its file, and
+ * a file's first block goes in the group of its inode (see homeBlock).
  */
- 
 public class SuperBlock {
     private static final int DEFAULT_INODE_BLOCKS = 64;
+    private static final int GROUP_BLOCKS = 64; // a bitmap word, about 6 tracks
+    public static final int MAX_V1_BLOCKS = 32767; // short block pointers
     public int totalBlocks; // the number of disk blocks
     public int totalInodes; // the number of Inodes
-    public int freeList;    // the block number of the free list's head
+    public int freeList;    // the block number of the free list's head, or
+                            // the first data block with a bitmap
+    public int version;     // on-disk format, see Inode.setVersion
+    private int formatVersion; // format used by the next format()
+    private int bitmapStart;   // first bitmap block, 0 with a free list
+    private long[] bitmap = null; // bit b set: block b is not free
+    private Group[] groups = null; // null with a free list
+
+    // A group of blocks, its share of the bitmap, and the lock over it
+    private class Group {
+        final int start;        // first block
+        final int end;          // block after the last
+        int hint;               // no block before it in the group is free
+        int free = 0;           // free blocks in the group
+        boolean dirty;          // bitmap changed since the last sync
+
+        Group(int start, int end, boolean dirty) {
+            this.start = start;
+            this.end = end;
+            this.dirty = dirty;
+            hint = start;
+            for (int w = start / 64; w < end / 64; w++) {
+                free += 64 - Long.bitCount(bitmap[w]);
+            }
+        }
+
+        //Allocates up to count free blocks in a row, the first found from
+        //goal, or from the start of the group if goal is not in it or no
+        //block after it is free. Returns the first one, or -1 if the group
+        //is full.
+        synchronized int allocate(int goal, int count, int[] length) {
+            if (free == 0) {
+                return -1;
+            }
+            int first = (goal > hint && goal < end) ? findFree(goal) : -1;
+            boolean fromHint = (first == -1);
+            if (fromHint && (first = findFree(hint)) == -1) {
+                return -1;
+            }
+            int n = 0;
+            while (n < count && first + n < end && !used(first + n)) {
+                setUsed(first + n, true);
+                n++;
+            }
+            if (fromHint) {
+                hint = first + n;
+            }
+            free -= n;
+            dirty = true;
+            length[0] = n;
+            return first;
+        }
+
+        //Frees a block; false if it is already free
+        synchronized boolean release(int block) {
+            if (!used(block)) {
+                return false;
+            }
+            setUsed(block, false);
+            free++;
+            // so that a file rewritten after a truncation gets its old,
+            // contiguous blocks back
+            hint = Math.min(hint, block);
+            dirty = true;
+            return true;
+        }
+
+        //Copies the group's part of the bitmap into copy, returning
+        //whether it changed since the last copy
+        synchronized boolean snapshot(long[] copy) {
+            System.arraycopy(bitmap, start / 64, copy, start / 64,
+                    (end - start) / 64);
+            boolean changed = dirty;
+            dirty = false;
+            return changed;
+        }
+
+        //Returns the first free block of the group at or after block, or -1
+        private int findFree(int block) {
+            for (int w = block / 64; w < end / 64; w++) {
+                long bits = ~bitmap[w];
+                if (w == block / 64) {
+                    bits &= -1L << (block % 64); // skip the bits before block
+                }
+                if (bits != 0) {
+                    return w * 64 + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            return -1;
+        }
+    }
 
     //Default constructor
     public SuperBlock() {
@@ -17,17 +122,46 @@ public class SuperBlock {
     }
 
     public SuperBlock(int diskSize) {
+        this(diskSize, 1);
+    }
+
+    //Mounts the volume, formatting it with the given format version if it
+    //holds no valid file system. Volumes too large for short block
+    //pointers use format 2 rather than 1. A formatVersion of 0 formats a
+    //blank volume with format 1, and otherwise keeps the mounted volume's
+    //format when it is formatted again.
+    public SuperBlock(int diskSize, int formatVersion) {
+        this.formatVersion = (formatVersion == 0) ? 1 : formatVersion;
+        if (diskSize > MAX_V1_BLOCKS && this.formatVersion == 1) {
+            this.formatVersion = 2;
+        }
+
         //Allocate space for SuperBlock
         byte[] superBlock = new byte[Disk.blockSize];
 
-        //Read SuperBlock from Disk
-        SysLib.rawread(0, superBlock);
+        //Read SuperBlock from Disk (through the journal, which the file
+        //system has already replayed)
+        Journal.read(0, superBlock);
         totalBlocks = SysLib.bytes2int(superBlock, 0);
         totalInodes = SysLib.bytes2int(superBlock, 4);
         freeList = SysLib.bytes2int(superBlock, 8);
+        version = SysLib.bytes2int(superBlock, 12);
+        if (version == 0) {
+            version = 1; // written before there were format versions
+        }
+        bitmapStart = SysLib.bytes2int(superBlock, 16);
 
-        if(totalBlocks == diskSize && totalInodes > 0 && freeList >= 2)
+        if(totalBlocks == diskSize && totalInodes > 0 && freeList >= 2
+                && version >= 1 && version <= 4) {
+            Inode.setVersion(version);
+            if (formatVersion == 0) {
+                this.formatVersion = version;
+            }
+            if (bitmapStart > 0) {
+                loadBitmap();
+            }
             return;
+        }
         else{
             totalBlocks = diskSize;
             format();
@@ -40,75 +174,202 @@ public class SuperBlock {
 
 
     public void format(int numInodes) {
-        byte[] block = null;
-
+        // anything still logged belongs to the old volume
+        Journal.format(totalBlocks);
+        Inode.discardDirty();
         totalInodes = numInodes;
+        version = formatVersion;
+        Inode.setVersion(version);
 
         for (int i = 0; i < totalInodes; i++) {
             Inode newNode = new Inode();
             newNode.toDisk((short) i);
         }
 
-        // Setting free list based on number of Inodes
+        // The first data block follows the inodes
         int var;
-        if(numInodes % 16 == 0) {
+        if(numInodes % Inode.inodesPerBlock() == 0) {
             var = 1;
         } else {
             var = 2;
         }
-        freeList = numInodes / 16 + var;
+        freeList = numInodes / Inode.inodesPerBlock() + var;
 
-        // create new free blocks and write it into Disk
-        for (int i = totalBlocks - 2; i >= freeList; i--) {
-            block = new byte[Disk.blockSize];
-            for (int j = 0; j < Disk.blockSize; j++) {
-                block[j] = (byte) 0;
-            }
-            SysLib.int2bytes(i + 1, block, 0);
-            SysLib.rawwrite(i, block);
+        // every block is free but the superblock, the inodes, the bitmap
+        // itself and the journal after it, and the bits past the volume
+        bitmapStart = Journal.firstBlock(totalBlocks) - bitmapBlocks();
+        bitmap = new long[bitmapBlocks() * Disk.blockSize / 8];
+        for (int b = 0; b < freeList; b++) {
+            setUsed(b, true);
         }
-        // Nullptr in last block
-        SysLib.int2bytes(-1, block, 0);
-        SysLib.rawwrite(totalBlocks - 1, block);
+        for (int b = bitmapStart; b < bitmap.length * 64; b++) {
+            setUsed(b, true);
+        }
+        makeGroups(true);
         sync();
+        Journal.sync();
     }
 
-    
-    //Write back totalBlocks, totalInodes, and freeList to Disk
-    public void sync() {
+    //Write back totalBlocks, totalInodes, freeList and the changed bitmap
+    //blocks to Disk
+    public synchronized void sync() {
+        if (groups != null) {
+            long[] copy = new long[bitmap.length];
+            int wordsPerBlock = Disk.blockSize / 8;
+            Set<Integer> changed = new TreeSet<Integer>();
+            for (Group g : groups) {
+                if (g.snapshot(copy)) {
+                    for (int w = g.start / 64; w < g.end / 64; w += wordsPerBlock) {
+                        changed.add(w / wordsPerBlock);
+                    }
+                    changed.add((g.end / 64 - 1) / wordsPerBlock);
+                }
+            }
+            for (Integer k : changed) {
+                byte[] data = new byte[Disk.blockSize];
+                for (int i = 0; i < wordsPerBlock; i++) {
+                    SysLib.long2bytes(copy[k * wordsPerBlock + i], data, i * 8);
+                }
+                Journal.write(bitmapStart + k, data);
+            }
+        }
+
         byte[] block = new byte[Disk.blockSize];
         SysLib.int2bytes(totalBlocks, block, 0);
         SysLib.int2bytes(totalInodes, block, 4);
         SysLib.int2bytes(freeList, block, 8);
-        SysLib.rawwrite(0, block);
+        SysLib.int2bytes(version, block, 12);
+        SysLib.int2bytes(bitmapStart, block, 16);
+        Journal.write(0, block);
     }
 
-    
+
     //Add a block to end of the freelist.
     //Return true if success false otherwise.
     public boolean returnBlock(int blockNum){
+        if (groups != null) {
+            // only data blocks can be freed, and only once
+            if (blockNum < freeList || blockNum >= bitmapStart) {
+                return false;
+            }
+            return groups[blockNum / GROUP_BLOCKS].release(blockNum);
+        }
+        pushFree(blockNum);
+        return true;
+    }
+
+    //Returns a free block, as near after goal as possible (see
+    //nextFreeRun), or -1 if the disk is full
+    public int nextFreeBlock(int goal) {
+        return nextFreeRun(goal, 1, new int[1]);
+    }
+
+    //Allocates a run of up to count contiguous free blocks. It is the
+    //first found at or after goal in goal's group, or else from the start
+    //of that group, or else in the groups after it. Returns its first
+    //block and sets length[0] to its length, or returns -1 if the disk is
+    //full. A volume with a free list hands out one block at a time from
+    //its head, whatever the goal.
+    public int nextFreeRun(int goal, int count, int[] length) {
+        if (groups == null) {
+            length[0] = 1;
+            return popFree();
+        }
+        int g = (goal >= 0 && goal < totalBlocks) ? goal / GROUP_BLOCKS : 0;
+        for (int i = 0; i < groups.length; i++) {
+            int first = groups[(g + i) % groups.length].allocate(goal, count, length);
+            if (first != -1) {
+                // a block may have been an indirect block that the journal
+                // still holds; it now holds file data
+                for (int b = first; b < first + length[0]; b++) {
+                    Journal.forget(b);
+                }
+                return first;
+            }
+        }
+        length[0] = 0;
+        return -1;
+    }
+
+    //Returns the goal for the first block of a file: the start of the
+    //group its inode belongs to. Inode numbers are dealt out over the
+    //groups holding data in turn, so that files created together are
+    //written by different groups. Returns -1 with a free list.
+    public int homeBlock(short iNumber) {
+        if (groups == null) {
+            return -1;
+        }
+        int first = freeList / GROUP_BLOCKS;
+        int last = (bitmapStart - 1) / GROUP_BLOCKS;
+        return Math.max(freeList,
+                (first + iNumber % (last - first + 1)) * GROUP_BLOCKS);
+    }
+
+    private synchronized void pushFree(int blockNum) {
         byte[] buffer = new byte[Disk.blockSize];
-        SysLib.short2bytes((short)freeList,buffer, 0);
-        SysLib.rawwrite(blockNum, buffer);
+        SysLib.int2bytes(freeList, buffer, 0);
+        Journal.write(blockNum, buffer);
         freeList = blockNum;
-        return true;
     }
 
-    
     //Returns first free block from free list
-    public int nextFreeBlock() {
+    private synchronized int popFree() {
         if (freeList > 0 && freeList < totalBlocks) {
             byte[] temp = new byte[Disk.blockSize];
-            SysLib.rawread(freeList, temp);
+            Journal.read(freeList, temp);
 
             int tempVal = freeList;
 
             // update next free block
             freeList = SysLib.bytes2int(temp, 0);
 
+            // the block now holds file data, so its logged free list link
+            // must never be written back over it
+            Journal.forget(tempVal);
+
             // return block location
             return tempVal;
         }
         return -1;
     }
-}
\ No newline at end of file
+
+    private boolean used(int block) {
+        return (bitmap[block / 64] & (1L << (block % 64))) != 0;
+    }
+
+    private void setUsed(int block, boolean used) {
+        if (used) {
+            bitmap[block / 64] |= 1L << (block % 64);
+        } else {
+            bitmap[block / 64] &= ~(1L << (block % 64));
+        }
+    }
+
+    //Blocks needed for a bit per block of the volume
+    private int bitmapBlocks() {
+        int bits = Disk.blockSize * 8;
+        return (totalBlocks + bits - 1) / bits;
+    }
+
+    //Divides the bitmap into groups; dirty ones are all saved by sync
+    private void makeGroups(boolean dirty) {
+        int bits = bitmap.length * 64;
+        groups = new Group[(bits + GROUP_BLOCKS - 1) / GROUP_BLOCKS];
+        for (int i = 0; i < groups.length; i++) {
+            groups[i] = new Group(i * GROUP_BLOCKS,
+                    Math.min(bits, (i + 1) * GROUP_BLOCKS), dirty);
+        }
+    }
+
+    private void loadBitmap() {
+        bitmap = new long[bitmapBlocks() * Disk.blockSize / 8];
+        byte[] data = new byte[Disk.blockSize];
+        for (int k = 0; k < bitmapBlocks(); k++) {
+            Journal.read(bitmapStart + k, data);
+            for (int i = 0; i < Disk.blockSize / 8; i++) {
+                bitmap[k * Disk.blockSize / 8 + i] = SysLib.bytes2long(data, i * 8);
+            }
+        }
+        makeGroups(false);
+    }
+}
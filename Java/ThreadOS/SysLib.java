@@ -81,6 +81,21 @@ public class SysLib {
         return Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.SEEK, fd,
                 args);
     }
+    /*
+    Works like seek, but takes and returns offsets beyond the range of an
+    int, which seek clamps. Returns the new seek pointer, or -1 on an error.
+     */
+    public static long lseek(int fd, long offset, int whence) {
+        long[] args = new long[2];
+        args[0] = offset;
+        args[1] = whence;
+        if (Kernel.interrupt(Kernel.INTERRUPT_SOFTWARE, Kernel.LSEEK, fd,
+                args) == Kernel.ERROR) {
+            return -1;
+        }
+        return args[0];
+    }
+
     /*
     Closes the file corresponding to fd, commits all file transactions on this file,
     and unregisters fd from the user file descriptor table of the calling thread's TCB.
@@ -126,6 +141,12 @@ public class SysLib {
                 Kernel.BOOT, 0, null );
     }
 
+    // boots with options from the command line such as "-disk ssd"
+    public static int boot( String args[] ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.BOOT, 0, args );
+    }
+
     public static int exit( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
                 Kernel.EXIT, 0, null );
@@ -136,9 +157,9 @@ public class SysLib {
                 Kernel.SLEEP, milliseconds, null );
     }
 
-    public static int disk( ) {
+    public static int disk( DiskRequest request ) {
         return Kernel.interrupt( Kernel.INTERRUPT_DISK,
-                0, 0, null );
+                0, 0, request );
     }
 
     public static int cin( StringBuffer s ) {
@@ -166,11 +187,30 @@ public class SysLib {
                 Kernel.RAWWRITE, blkNumber, b );
     }
 
+    // moves blkNumbers[i] to or from b[i] for every i in one disk request,
+    // so contiguous blocks pay for a single seek
+    public static int rawreadv( int[] blkNumbers, byte[][] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RAWREADV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    public static int rawwritev( int[] blkNumbers, byte[][] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RAWWRITEV, 0, new Object[]{ blkNumbers, b } );
+    }
+
     public static int sync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
                 Kernel.SYNC, 0, null );
     }
 
+    // writes the given disk blocks through to the DISK file, as SYNC does
+    // for every block, without the file system or the cache
+    public static int rawsync( int[] blkNumbers ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.RAWSYNC, 0, blkNumbers );
+    }
+
     public static int cread( int blkNumber, byte[] b ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
                 Kernel.CREAD, blkNumber, b );
@@ -186,11 +226,34 @@ public class SysLib {
                 Kernel.CFLUSH, 0, null );
     }
 
+    public static int creadv( int[] blkNumbers, byte[][] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CREADV, 0, new Object[]{ blkNumbers, b } );
+    }
+
+    public static int cwritev( int[] blkNumbers, byte[][] b ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CWRITEV, 0, new Object[]{ blkNumbers, b } );
+    }
+
     public static int csync( ) {
         return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
                 Kernel.CSYNC, 0, null );
     }
 
+    // Changes the number of blocks the cache holds
+    public static int cresize( int blocks ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CRESIZE, blocks, null );
+    }
+
+    // Fills stats with the cache counters, indexed by Cache.READ_HITS to
+    // Cache.DIRTY; it needs Cache.STATS elements
+    public static int cstats( long[] stats ) {
+        return Kernel.interrupt( Kernel.INTERRUPT_SOFTWARE,
+                Kernel.CSTATS, 0, stats );
+    }
+
     public static String[] stringToArgs( String s ) {
         StringTokenizer token = new StringTokenizer( s," " );
         String[] progArgs = new String[ token.countTokens( ) ];
@@ -225,4 +288,14 @@ public class SysLib {
                 ((b[offset+2] & 0xff) << 8) + (b[offset+3] & 0xff);
         return n;
     }
+
+    public static void long2bytes( long l, byte[] b, int offset ) {
+        int2bytes( (int)( l >> 32 ), b, offset );
+        int2bytes( (int)l, b, offset + 4 );
+    }
+
+    public static long bytes2long( byte[] b, int offset ) {
+        return ( (long)bytes2int( b, offset ) << 32 ) +
+            ( bytes2int( b, offset + 4 ) & 0xffffffffL );
+    }
 }
@@ -0,0 +1,118 @@
+/**
+ * CSS 430 Final Project
+ *
+ * Test7.java
+ *
+ * Checks that the journal recovers file system metadata after a crash.
+ * "Test7 w" formats the volume, writes a file and syncs, then appends to
+ * the file without syncing: only the journal can carry the new length to
+ * the DISK file. Kill ThreadOS then, without "q", so that it never syncs
+ * again, and run "Test7 r" after booting it with the same options. The
+ * mount replays the journal, so the file must have its new length.
+ *
+ * Only metadata is journaled: the appended bytes themselves reach the
+ * DISK file on SYNC, so "Test7 r" checks the bytes written before it.
+ */
+class Test7 extends Thread {
+  final static int FILES = 48;
+  final static int COMMIT_WAIT = 1000; // ms, several journal commits
+  final String mode;
+  final byte[] buf16 = new byte[16];
+
+  public Test7( String args[] ) {
+    mode = args[0];
+  }
+
+  public Test7( ) {
+    mode = "w";
+  }
+
+  public void run( ) {
+    for ( byte i = 0; i < 16; i++ )
+      buf16[i] = i;
+    if ( mode.equals( "w" ) ) {
+      if ( test1( ) ) // write and sync a file
+        SysLib.cout("Correct behavior of writing and syncing.........2\n");
+      if ( test2( ) ) // append without a sync
+        SysLib.cout("Correct behavior of appending...................2\n");
+      SysLib.cout( "Kill ThreadOS now, without q, then run Test7 r\n" );
+    } else {
+      if ( test3( ) ) // the appended length was replayed
+        SysLib.cout("Correct behavior of replaying the journal.......2\n");
+      if ( test4( ) ) // the synced data is intact
+        SysLib.cout("Correct behavior of reading after a crash.......2\n");
+    }
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: write \"journal\" and sync......" );
+    SysLib.format( FILES );
+    int fd = SysLib.open( "journal", "w+" );
+    int size = SysLib.write( fd, buf16 );
+    SysLib.close( fd );
+    if ( size != 16 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.sync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: append to \"journal\"..........." );
+    int fd = SysLib.open( "journal", "a" );
+    int size = SysLib.write( fd, buf16 );
+    SysLib.close( fd );
+    if ( size != 16 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    // closing saved the inode; let the journal commit it
+    SysLib.sleep( COMMIT_WAIT );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: fsize( \"journal\" )............" );
+    int fd = SysLib.open( "journal", "r" );
+    if ( fd == -1 ) {
+      SysLib.cout( "fd = " + fd + " (wrong)\n" );
+      return false;
+    }
+    int size = SysLib.fsize( fd );
+    SysLib.close( fd );
+    if ( size != 32 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: read \"journal\"................" );
+    int fd = SysLib.open( "journal", "r" );
+    byte[] tmpBuf = new byte[16];
+    int size = SysLib.read( fd, tmpBuf );
+    SysLib.close( fd );
+    if ( size != 16 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    for ( int i = 0; i < 16; i++ )
+      if ( tmpBuf[i] != buf16[i] ) {
+        SysLib.cout( "tmpBuf[" + i + "] = " + tmpBuf[i] + " (wrong)\n" );
+        return false;
+      }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
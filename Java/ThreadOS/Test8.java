@@ -0,0 +1,300 @@
+/**
+ * CSS 430 Final Project
+ *
+ * Test8.java
+ *
+ * Checks how files are mapped to disk blocks, across reboots. "Test8 w"
+ * formats the volume and writes files that reach past every boundary of
+ * the format's block map; "Test8 r", run after rebooting ThreadOS with the
+ * same options, reads them back. Both check the data at each boundary,
+ * seeking to it with lseek, and then read every file whole.
+ *
+ * Formats 1, 2 and 4 get one file past the direct blocks and the single
+ * indirect block, and with format 4 past the double indirect block too,
+ * which needs a volume of about 17000 blocks (java Boot -blocks 17000
+ * -fsversion 4). Formats 1 and 2 fill the largest file they can map and
+ * check that it cannot grow any more. Format 3 gets two files written a
+ * block at a time in turn, so that neither has two blocks in a row and
+ * their extents overflow into a chain of several blocks.
+ */
+class Test8 extends Thread {
+  final static int FILES = 48;
+  final static int CHUNK = 64;         // blocks written or read at once
+  final static int ROUNDS = 150;       // blocks of each format 3 file
+  final int blockSize = Disk.blockSize;
+  final String mode;
+  int version;
+  long[] boundaries;                   // in blocks, where the map changes
+  long blocks;                         // size of the format 1, 2, 4 file
+
+  public Test8( String args[] ) {
+    mode = args[0];
+  }
+
+  public Test8( ) {
+    mode = "w";
+  }
+
+  public void run( ) {
+    if ( test1( ) ) // format or mount, and work out the block map
+      SysLib.cout("Correct behavior of reading the superblock......2\n");
+    if ( version == 3 ) {
+      if ( mode.equals( "w" ) && test2( ) ) // write two fragmented files
+        SysLib.cout("Correct behavior of writing extents.............2\n");
+      if ( test3( ) ) // the extents overflow into a chain
+        SysLib.cout("Correct behavior of chaining extents............2\n");
+      if ( test4( ) ) // read them back
+        SysLib.cout("Correct behavior of reading extents.............2\n");
+    } else {
+      if ( mode.equals( "w" ) && test5( ) ) // write across the boundaries
+        SysLib.cout("Correct behavior of writing indirect blocks.....2\n");
+      if ( test6( ) ) // seek to each boundary and read
+        SysLib.cout("Correct behavior of seeking indirect blocks.....2\n");
+      if ( test7( ) ) // read the file whole
+        SysLib.cout("Correct behavior of reading indirect blocks.....2\n");
+      if ( mode.equals( "w" ) && version != 4 && test8( ) ) // no room left
+        SysLib.cout("Correct behavior of the largest file............2\n");
+    }
+    if ( mode.equals( "w" ) )
+      SysLib.sync( );
+    SysLib.cout( "Test completed\n" );
+    SysLib.exit( );
+  }
+
+  // the byte at pos of a file
+  private byte val( int seed, long pos ) {
+    return ( byte )( pos / blockSize * 13 + pos + seed );
+  }
+
+  private void fill( byte[] buffer, int seed, long pos ) {
+    for ( int i = 0; i < buffer.length; i++ )
+      buffer[i] = val( seed, pos + i );
+  }
+
+  private boolean check( byte[] buffer, int length, int seed, long pos ) {
+    for ( int i = 0; i < length; i++ )
+      if ( buffer[i] != val( seed, pos + i ) ) {
+        SysLib.cout( "byte " + ( pos + i ) + " = " + buffer[i]
+           + " should be " + val( seed, pos + i ) + " (wrong)\n" );
+        return false;
+      }
+    return true;
+  }
+
+  // reads a whole file, CHUNK blocks at a time
+  private boolean readAll( String name, int seed, long size ) {
+    int fd = SysLib.open( name, "r" );
+    long length = SysLib.lseek( fd, 0, 2 );
+    if ( length != size ) {
+      SysLib.cout( name + " length = " + length + " (wrong)\n" );
+      SysLib.close( fd );
+      return false;
+    }
+    SysLib.lseek( fd, 0, 0 );
+    byte[] buffer = new byte[CHUNK * blockSize];
+    for ( long pos = 0; pos < size; pos += buffer.length ) {
+      int expected = ( int )Math.min( buffer.length, size - pos );
+      int read = SysLib.read( fd, buffer );
+      if ( read != expected ) {
+        SysLib.cout( "read at " + pos + " = " + read + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+      if ( !check( buffer, read, seed, pos ) ) {
+        SysLib.close( fd );
+        return false;
+      }
+    }
+    SysLib.close( fd );
+    return true;
+  }
+
+  private boolean test1( ) {
+    //.............................................."
+    SysLib.cout( "1: " + ( mode.equals( "w" ) ? "format( " + FILES + " )"
+                           : "mount" ) + "......................." );
+    if ( mode.equals( "w" ) )
+      SysLib.format( FILES );
+    byte[] superblock = new byte[blockSize];
+    SysLib.rawread( 0, superblock );
+    int totalBlocks = SysLib.bytes2int( superblock, 0 );
+    int freeList = SysLib.bytes2int( superblock, 8 );
+    version = SysLib.bytes2int( superblock, 12 );
+    int bitmapStart = SysLib.bytes2int( superblock, 16 );
+    if ( version == 0 )
+      version = 1;
+    if ( version < 1 || version > 4 ) {
+      SysLib.cout( "version = " + version + " (wrong)\n" );
+      return false;
+    }
+    if ( version == 3 ) {
+      SysLib.cout( "successfully completed\n" );
+      return true;
+    }
+
+    int direct = ( version == 4 ) ? 10 : 11;
+    long pointers = blockSize / ( ( version == 1 ) ? 2 : 4 );
+    if ( version == 4 ) {
+      boundaries = new long[] { direct, direct + pointers,
+                                direct + pointers + pointers * pointers };
+      // a couple of blocks into the triple indirect block
+      blocks = boundaries[2] + 2;
+    } else {
+      boundaries = new long[] { direct, direct + pointers };
+      blocks = boundaries[1];
+    }
+    // the data, and about one indirect block per pointers data blocks
+    long needed = blocks + blocks / pointers + 4;
+    int end = ( bitmapStart > 0 ) ? bitmapStart
+       : Journal.firstBlock( totalBlocks );
+    if ( end - freeList < needed ) {
+      SysLib.cout( ( end - freeList ) + " data blocks, " + needed
+         + " needed: boot with a larger -blocks (wrong)\n" );
+      boundaries = new long[0];
+      blocks = 0;
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test2( ) {
+    //.............................................."
+    SysLib.cout( "2: write ext0 and ext1 in turn...." );
+    byte[] buffer = new byte[blockSize];
+    for ( int r = 0; r < ROUNDS; r++ )
+      for ( int f = 0; f < 2; f++ ) {
+        int fd = SysLib.open( "ext" + f, "a" );
+        fill( buffer, f, ( long )r * blockSize );
+        int size = SysLib.write( fd, buffer );
+        SysLib.close( fd );
+        if ( size != blockSize ) {
+          SysLib.cout( "size = " + size + " (wrong)\n" );
+          return false;
+        }
+      }
+    // so that the inodes and their extents are on the disk for test3
+    SysLib.sync( );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test3( ) {
+    //.............................................."
+    SysLib.cout( "3: ext0 extent chain.............." );
+    // ext0 is the first file created, inode 1; a format 3 inode is
+    // 64 bytes, and its extent chain starts after 6 extents of 8 bytes
+    byte[] data = new byte[blockSize];
+    SysLib.rawread( 1 / ( blockSize / 64 ) + 1, data );
+    int next = SysLib.bytes2int( data, 1 % ( blockSize / 64 ) * 64 + 60 );
+    int chain = 0;
+    while ( next != -1 && chain < ROUNDS ) {
+      chain++;
+      SysLib.rawread( next, data );
+      next = SysLib.bytes2int( data, 63 * 8 );
+    }
+    if ( chain < 2 ) {
+      SysLib.cout( "chain = " + chain + " blocks (wrong)\n" );
+      return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test4( ) {
+    //.............................................."
+    SysLib.cout( "4: seek and read ext0 and ext1...." );
+    byte[] buffer = new byte[2 * blockSize];
+    for ( int f = 0; f < 2; f++ ) {
+      int fd = SysLib.open( "ext" + f, "r" );
+      // across the first block of each extent chain block
+      for ( long b = 5; b < ROUNDS - 1; b += 63 ) {
+        long pos = b * blockSize + blockSize / 2;
+        SysLib.lseek( fd, pos, 0 );
+        int size = SysLib.read( fd, buffer );
+        if ( size != buffer.length || !check( buffer, size, f, pos ) ) {
+          SysLib.close( fd );
+          return false;
+        }
+      }
+      SysLib.close( fd );
+      if ( !readAll( "ext" + f, f, ( long )ROUNDS * blockSize ) )
+        return false;
+    }
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test5( ) {
+    //.............................................."
+    SysLib.cout( "5: write " + blocks + " blocks to big......" );
+    int fd = SysLib.open( "big", "w" );
+    byte[] buffer = new byte[CHUNK * blockSize];
+    long size = blocks * blockSize;
+    for ( long pos = 0; pos < size; pos += buffer.length ) {
+      byte[] chunk = ( size - pos < buffer.length )
+         ? new byte[( int )( size - pos )] : buffer;
+      fill( chunk, 0, pos );
+      if ( SysLib.write( fd, chunk ) != chunk.length ) {
+        SysLib.cout( "write at " + pos + " failed (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+    }
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test6( ) {
+    //.............................................."
+    SysLib.cout( "6: seek across the boundaries....." );
+    int fd = SysLib.open( "big", "r" );
+    byte[] buffer = new byte[blockSize];
+    for ( int i = 0; i < boundaries.length; i++ ) {
+      // the last 256 bytes before the boundary and the first 256 after;
+      // the last boundary of formats 1 and 2 is the end of the file
+      long pos = boundaries[i] * blockSize - blockSize / 2;
+      int expected = ( int )Math.min( blockSize, blocks * blockSize - pos );
+      SysLib.lseek( fd, pos, 0 );
+      int size = SysLib.read( fd, buffer );
+      if ( size != expected ) {
+        SysLib.cout( "read at " + pos + " = " + size + " (wrong)\n" );
+        SysLib.close( fd );
+        return false;
+      }
+      if ( !check( buffer, size, 0, pos ) ) {
+        SysLib.close( fd );
+        return false;
+      }
+    }
+    SysLib.close( fd );
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test7( ) {
+    //.............................................."
+    SysLib.cout( "7: read big whole................." );
+    if ( !readAll( "big", 0, blocks * blockSize ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+
+  private boolean test8( ) {
+    //.............................................."
+    SysLib.cout( "8: append past the largest file..." );
+    int fd = SysLib.open( "big", "a" );
+    int size = SysLib.write( fd, new byte[blockSize] );
+    SysLib.close( fd );
+    if ( size != -1 ) {
+      SysLib.cout( "size = " + size + " (wrong)\n" );
+      return false;
+    }
+    if ( !readAll( "big", 0, blocks * blockSize ) )
+      return false;
+    SysLib.cout( "successfully completed\n" );
+    return true;
+  }
+}
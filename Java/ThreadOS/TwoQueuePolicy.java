@@ -0,0 +1,63 @@
+import java.util.*;
+
+// 2Q (Johnson and Shasha). New blocks enter a small FIFO, A1in, and are
+// evicted from there even if they were read again, keeping their numbers
+// in a ghost list, A1out. Only a block missed again while it is in A1out
+// enters the main queue, Am. A single scan therefore passes through A1in
+// without disturbing Am. Am is run as a clock, since hits only set
+// reference bits.
+public class TwoQueuePolicy implements CachePolicy {
+    private int maxIn;             // Kin: A1in size, a quarter of the frames
+    private int maxOut;            // Kout: ghosts kept, half the frames
+    private LinkedList<Cache.Entry> in = new LinkedList<Cache.Entry>();
+    private LinkedHashSet<Integer> out = new LinkedHashSet<Integer>();
+    private ArrayList<Cache.Entry> main = new ArrayList<Cache.Entry>();
+    private int hand = 0;          // clock hand over main
+
+    public TwoQueuePolicy(int frames) {
+        maxIn = Math.max(1, frames / 4);
+        maxOut = Math.max(1, frames / 2);
+    }
+
+    public void insert(Cache.Entry entry) {
+        entry.reference = false;
+        if (out.remove(entry.frame)) {
+            main.add(entry);
+        } else {
+            in.addLast(entry);
+        }
+    }
+
+    public Cache.Entry evict() {
+        if (in.size() > maxIn || main.isEmpty()) {
+            Cache.Entry victim = in.removeFirst();
+            out.add(victim.frame);
+            if (out.size() > maxOut) {
+                out.remove(out.iterator().next());
+            }
+            return victim;
+        }
+        while (true) {
+            if (hand >= main.size()) {
+                hand = 0;
+            }
+            Cache.Entry e = main.get(hand);
+            if (!e.reference) {
+                return main.remove(hand);
+            }
+            e.reference = false;
+            hand++;
+        }
+    }
+
+    public void clear() {
+        in.clear();
+        out.clear();
+        main.clear();
+        hand = 0;
+    }
+
+    public String toString() {
+        return "2q";
+    }
+}